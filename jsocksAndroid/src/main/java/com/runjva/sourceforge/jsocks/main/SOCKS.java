@@ -8,11 +8,13 @@ import java.net.UnknownHostException;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ThreadFactory;
 
 import android.util.Log;
 
 import com.runjva.sourceforge.jsocks.protocol.InetRange;
 import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.Socks5Proxy;
 import com.runjva.sourceforge.jsocks.protocol.SocksProxyBase;
 import com.runjva.sourceforge.jsocks.server.IdentAuthenticator;
 
@@ -154,6 +156,11 @@ public class SOCKS {
 			ProxyServer.setAcceptTimeout(val);
 			inform("Setting accept timeout to " + val + " ms.");
 		}
+		val = readInt(props, "connectTimeout");
+		if (val >= 0) {
+			ProxyServer.setConnectTimeout(val);
+			inform("Setting connect timeout to " + val + " ms.");
+		}
 		val = readInt(props, "udpTimeout");
 		if (val >= 0) {
 			ProxyServer.setUDPTimeout(val);
@@ -166,6 +173,16 @@ public class SOCKS {
 			inform("Setting datagram size to " + val + " bytes.");
 		}
 
+		if ("true".equalsIgnoreCase((String) props.get("virtualThreads"))) {
+			final ThreadFactory factory = virtualThreadFactory();
+			if (factory != null) {
+				ProxyServer.setThreadFactory(factory);
+				inform("Using virtual threads.");
+			} else {
+				inform("Virtual threads not supported by this runtime.");
+			}
+		}
+
 		proxyInit(props);
 
 	}
@@ -195,6 +212,11 @@ public class SOCKS {
 
 			inform("Adding Proxy:" + p);
 
+			if ((p instanceof Socks5Proxy)
+					&& "true".equalsIgnoreCase((String) props.get("pipelining"))) {
+				((Socks5Proxy) p).setPipelining(true);
+			}
+
 			if (proxy != null) {
 				p.setChainProxy(proxy);
 			}
@@ -214,6 +236,16 @@ public class SOCKS {
 		}
 
 		ProxyServer.setProxy(proxy);
+
+		final int poolSize = readInt(props, "upstreamPool");
+		if (poolSize > 0) {
+			int idleTimeout = readInt(props, "upstreamIdleTimeout");
+			if (idleTimeout < 0) {
+				idleTimeout = 30000;
+			}
+			ProxyServer.setUpstreamPool(poolSize, idleTimeout);
+			inform("Keeping " + poolSize + " upstream sessions ready.");
+		}
 	}
 
 	/**
@@ -230,6 +262,22 @@ public class SOCKS {
 		return irange;
 	}
 
+	/**
+	 * Factory of virtual threads, or null if the runtime does not have them.
+	 * Looked up by reflection, so that the code still builds for older
+	 * runtimes and Android.
+	 */
+	static ThreadFactory virtualThreadFactory() {
+		try {
+			final Object builder = Thread.class.getMethod("ofVirtual").invoke(
+					null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		} catch (final Exception e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Integer representaion of the property named name, or -1 if one is not
 	 * found.
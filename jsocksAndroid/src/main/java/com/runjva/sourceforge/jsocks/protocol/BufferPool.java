@@ -0,0 +1,88 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized byte buffers shared by the relay sessions.
+ * <p>
+ * Sessions lease buffers for their lifetime and hand them back when they are
+ * done. At most maxPooled released buffers are kept for reuse, buffers
+ * leased while the pool is empty are allocated on demand and dropped on
+ * release if the pool is already full. Direct buffers let the NIO relay move
+ * data between sockets without copying it through the Java heap.
+ */
+class BufferPool {
+
+	final int bufferSize;
+	final int maxPooled;
+	final boolean direct;
+
+	private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicInteger leased = new AtomicInteger();
+
+	/**
+	 * Creates an empty pool.
+	 *
+	 * @param bufferSize
+	 *            Capacity of every buffer handed out.
+	 * @param maxPooled
+	 *            Maximum number of idle buffers kept for reuse.
+	 * @param direct
+	 *            Wether to allocate direct or heap buffers.
+	 */
+	BufferPool(final int bufferSize, final int maxPooled, final boolean direct) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating a new one if none is
+	 * available.
+	 */
+	ByteBuffer lease() {
+		leased.incrementAndGet();
+		final ByteBuffer buf = free.poll();
+		if (buf != null) {
+			pooled.decrementAndGet();
+			buf.clear();
+			return buf;
+		}
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer
+				.allocate(bufferSize);
+	}
+
+	/**
+	 * Returns a buffer obtained from lease. The buffer must not be used by the
+	 * caller afterwards.
+	 */
+	void release(final ByteBuffer buf) {
+		if (buf == null) {
+			return;
+		}
+		leased.decrementAndGet();
+		if ((buf.capacity() != bufferSize) || (buf.isDirect() != direct)) {
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buf.clear();
+		free.offer(buf);
+	}
+
+	/** Number of buffers currently leased out. */
+	int leased() {
+		return leased.get();
+	}
+
+	/** Number of idle buffers kept in the pool. */
+	int pooled() {
+		return pooled.get();
+	}
+}
@@ -0,0 +1,120 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Datagrams drained from a channel in one go, packed back to back into a
+ * single array.
+ * <p>
+ * Java has no recvmmsg, so a batch still costs one receive per datagram, but
+ * all datagrams which are ready are taken on a single selector wakeup and can
+ * then be checked and sent together. Every datagram is received behind
+ * headroom free bytes, leaving space to put a header in front of it. A new
+ * datagram is only received while there is room for one of the maximal size,
+ * so nothing is ever truncated.
+ */
+final class DatagramBatch {
+
+	final int capacity;
+	final int headroom;
+	final int maxDatagram;
+
+	final byte[] data;
+	final ByteBuffer buf;
+
+	/** Start of each datagram in data, may be moved past headers. */
+	final int[] offsets;
+	final int[] lengths;
+	/** Source of each datagram, the destination once set to null drops it. */
+	final InetSocketAddress[] addresses;
+	/** Array holding each datagram, data unless it was replaced. */
+	final byte[][] arrays;
+	int count;
+
+	/**
+	 * @param capacity
+	 *            Maximal number of datagrams taken per batch.
+	 * @param headroom
+	 *            Bytes to leave free in front of every datagram.
+	 * @param maxDatagram
+	 *            Size of the largest datagram to be received.
+	 */
+	DatagramBatch(final int capacity, final int headroom,
+			final int maxDatagram) {
+		this.capacity = capacity;
+		this.headroom = headroom;
+		this.maxDatagram = maxDatagram;
+		// Room for one maximal datagram plus the same again for packing
+		// small ones, which is what bursts are made of.
+		data = new byte[2 * (headroom + maxDatagram)];
+		buf = ByteBuffer.wrap(data);
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+		addresses = new InetSocketAddress[capacity];
+		arrays = new byte[capacity][];
+	}
+
+	/**
+	 * Receives datagrams until the channel has no more, or the batch is full.
+	 *
+	 * @param limit
+	 *            Maximal number of datagrams to take, at most capacity.
+	 * @return Number of datagrams received.
+	 */
+	int receive(final DatagramChannel channel, final int limit)
+			throws IOException {
+		clear();
+		final int max = Math.min(limit, capacity);
+		int end = 0;
+		while ((count < max) && (data.length - end >= headroom + maxDatagram)) {
+			buf.limit(end + headroom + maxDatagram);
+			buf.position(end + headroom);
+			final InetSocketAddress from = (InetSocketAddress) channel
+					.receive(buf);
+			if (from == null) {
+				break;
+			}
+			offsets[count] = end + headroom;
+			lengths[count] = buf.position() - offsets[count];
+			addresses[count] = from;
+			arrays[count] = data;
+			count++;
+			end = buf.position();
+		}
+		return count;
+	}
+
+	/**
+	 * Datagram i as a buffer ready to be read or sent. The buffer is shared,
+	 * it is only valid until the next call.
+	 */
+	ByteBuffer packet(final int i) {
+		if (arrays[i] != data) {
+			return ByteBuffer.wrap(arrays[i], offsets[i], lengths[i]);
+		}
+		buf.limit(offsets[i] + lengths[i]);
+		buf.position(offsets[i]);
+		return buf;
+	}
+
+	/**
+	 * Replaces datagram i, e.g. by its decapsulated form.
+	 */
+	void set(final int i, final byte[] array, final int offset,
+			final int length) {
+		arrays[i] = array;
+		offsets[i] = offset;
+		lengths[i] = length;
+	}
+
+	void clear() {
+		for (int i = 0; i < count; i++) {
+			addresses[i] = null;
+			arrays[i] = null;
+		}
+		count = 0;
+	}
+}
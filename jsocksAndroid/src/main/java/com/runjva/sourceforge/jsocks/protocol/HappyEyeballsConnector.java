@@ -0,0 +1,185 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.net.VpnService;
+
+/**
+ * Connects to the first reachable of several addresses of a host, in the
+ * manner of happy eyeballs (rfc8305).
+ * <p>
+ * The addresses are ordered to alternate between IPv6 and IPv4, starting with
+ * the family the resolver listed first. Attempts are started one after the
+ * other, ATTEMPT_DELAY ms apart or as soon as the previous one failed, and
+ * run concurrently on non blocking channels of a single selector. The first
+ * connection established wins, all others are closed. A dead address thus
+ * costs at most ATTEMPT_DELAY instead of the connect timeout of the system.
+ */
+final class HappyEyeballsConnector {
+
+	/** Delay before the next address is tried, as recommended by rfc8305. */
+	static final int ATTEMPT_DELAY = 250;
+
+	private HappyEyeballsConnector() {
+	}
+
+	/**
+	 * Connects to one of the addresses.
+	 *
+	 * @param addresses
+	 *            Addresses of the host, in the order of the resolver.
+	 * @param port
+	 *            Port to connect to.
+	 * @param timeout
+	 *            Overall time limit in ms, 0 for none.
+	 * @param vpnService
+	 *            If not null, used to protect the sockets from the VPN.
+	 * @return Connected socket in blocking mode.
+	 * @throws IOException
+	 *             Of the last failed attempt if all attempts failed, or
+	 *             SocketTimeoutException if none succeeded in time.
+	 */
+	static Socket connect(final InetAddress[] addresses, final int port,
+			final int timeout, final VpnService vpnService) throws IOException {
+		final InetAddress[] ordered = interleave(addresses);
+		final long deadline = timeout > 0 ? System.currentTimeMillis()
+				+ timeout : Long.MAX_VALUE;
+		final List<SocketChannel> pending = new ArrayList<SocketChannel>();
+		final Selector selector = Selector.open();
+		SocketChannel winner = null;
+		IOException failure = null;
+		try {
+			int next = 0;
+			long nextStart = 0;
+			while (winner == null) {
+				long now = System.currentTimeMillis();
+				if (now >= deadline) {
+					throw new SocketTimeoutException("Connect timed out");
+				}
+				if ((next < ordered.length)
+						&& (pending.isEmpty() || (now >= nextStart))) {
+					try {
+						winner = start(ordered[next], port, selector,
+								vpnService, pending);
+					} catch (final IOException ioe) {
+						failure = ioe;
+					}
+					next++;
+					nextStart = now + ATTEMPT_DELAY;
+					continue;
+				}
+				if (pending.isEmpty()) {
+					throw failure != null ? failure : new IOException(
+							"No address to connect to");
+				}
+
+				long wait = deadline - now;
+				if (next < ordered.length) {
+					wait = Math.min(wait, nextStart - now);
+				}
+				selector.select(Math.max(1, wait));
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext() && (winner == null)) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					final SocketChannel channel = (SocketChannel) key.channel();
+					try {
+						if (channel.finishConnect()) {
+							winner = channel;
+						}
+					} catch (final IOException ioe) {
+						failure = ioe;
+						pending.remove(channel);
+						channel.close();
+						nextStart = 0; // Try the next address right away.
+					}
+				}
+			}
+		} finally {
+			selector.close();
+			for (final SocketChannel channel : pending) {
+				if (channel != winner) {
+					try {
+						channel.close();
+					} catch (final IOException ioe) {
+					}
+				}
+			}
+		}
+		winner.configureBlocking(true);
+		return winner.socket();
+	}
+
+	/**
+	 * Addresses reordered to alternate between the families, keeping the
+	 * order within each family.
+	 */
+	static InetAddress[] interleave(final InetAddress[] addresses) {
+		if (addresses.length < 2) {
+			return addresses;
+		}
+		final boolean firstIs6 = addresses[0] instanceof Inet6Address;
+		final List<InetAddress> first = new ArrayList<InetAddress>();
+		final List<InetAddress> second = new ArrayList<InetAddress>();
+		for (final InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == firstIs6) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+		final InetAddress[] ordered = new InetAddress[addresses.length];
+		int i = 0;
+		for (int j = 0; i < ordered.length; j++) {
+			if (j < first.size()) {
+				ordered[i++] = first.get(j);
+			}
+			if (j < second.size()) {
+				ordered[i++] = second.get(j);
+			}
+		}
+		return ordered;
+	}
+
+	// Private methods
+	// ///////////////
+
+	/**
+	 * Starts an attempt, returns the channel if it connected right away.
+	 */
+	private static SocketChannel start(final InetAddress address,
+			final int port, final Selector selector,
+			final VpnService vpnService, final List<SocketChannel> pending)
+			throws IOException {
+		final SocketChannel channel = SocketChannel.open();
+		try {
+			channel.configureBlocking(false);
+			if (vpnService != null) {
+				vpnService.protect(channel.socket());
+			}
+			pending.add(channel);
+			if (channel.connect(new InetSocketAddress(address, port))) {
+				return channel;
+			}
+			channel.register(selector, SelectionKey.OP_CONNECT);
+			return null;
+		} catch (final IOException ioe) {
+			pending.remove(channel);
+			channel.close();
+			throw ioe;
+		}
+	}
+}
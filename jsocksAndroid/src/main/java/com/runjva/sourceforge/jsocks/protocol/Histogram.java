@@ -0,0 +1,136 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non negative values with buckets of bounded relative size, in
+ * the manner of HdrHistogram.
+ * <p>
+ * Values below 8 have a bucket each, every power of two above is split into
+ * 8 buckets, so a value is known to within 12.5%. Values of 2^40 and above
+ * are counted in the last bucket. Recording is lock free and does not
+ * allocate, it may be done from any number of threads.
+ */
+public final class Histogram {
+
+	static final int SUB_BITS = 3;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	static final int MAX_BITS = 40;
+	static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Counts of a histogram at one point in time.
+	 */
+	public static final class Snapshot {
+		final long[] counts;
+
+		/** Number of values recorded. */
+		public final long count;
+		/** Sum of the values recorded. */
+		public final long sum;
+		/** Largest value recorded, 0 if none. */
+		public final long max;
+
+		Snapshot(final long[] counts, final long sum, final long max) {
+			this.counts = counts;
+			long count = 0;
+			for (final long c : counts) {
+				count += c;
+			}
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Mean of the values recorded, 0 if none.
+		 */
+		public double mean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * Value below or at which the given percentage of the values lie, as
+		 * the upper bound of its bucket.
+		 *
+		 * @param percentile
+		 *            Between 0 and 100.
+		 * @return The value, 0 if nothing was recorded.
+		 */
+		public long percentile(final double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1,
+					(long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max);
+				}
+			}
+			return max;
+		}
+	}
+
+	/**
+	 * Records a value, negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		sum.addAndGet(value);
+		long m;
+		while ((m = max.get()) < value) {
+			if (max.compareAndSet(m, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Copies the current counts. Values recorded meanwhile may or may not be
+	 * included.
+	 */
+	public Snapshot snapshot() {
+		final long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, sum.get(), max.get());
+	}
+
+	// Package methods
+	// ///////////////
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		if (value > MAX_VALUE) {
+			value = MAX_VALUE;
+		}
+		final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (magnitude - SUB_BITS))
+				& (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(final int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		final int shift = bucket / SUB_BUCKETS - 1;
+		final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+}
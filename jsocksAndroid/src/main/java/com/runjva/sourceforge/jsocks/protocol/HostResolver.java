@@ -0,0 +1,215 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Host name resolver shared by all InetRanges, the UDP relays and the NIO
+ * proxy.
+ * <p>
+ * Lookups are done on a small, bounded pool of daemon threads and their
+ * results are cached: names which resolved for the positive time to live,
+ * names which failed for the negative one. The times are taken from the
+ * networkaddress.cache.ttl and networkaddress.cache.negative.ttl security
+ * properties, as used by InetAddress, with defaults of 60 and 10 seconds.
+ * <p>
+ * lookup never blocks: a name which is not known yet is scheduled for
+ * resolution and null is returned, a name whose answer expired is refreshed
+ * in the background while the old answer is still returned.
+ */
+class HostResolver {
+
+	static final int THREADS = 2;
+	static final int QUEUE_SIZE = 256;
+	static final int MAX_ENTRIES = 4096;
+	static final long DEFAULT_TTL = 60000; // 1 minute
+	static final long DEFAULT_NEGATIVE_TTL = 10000; // 10 seconds
+
+	static final HostResolver shared = new HostResolver(ttl(
+			"networkaddress.cache.ttl", DEFAULT_TTL), ttl(
+			"networkaddress.cache.negative.ttl", DEFAULT_NEGATIVE_TTL));
+
+	final long positiveTtl;
+	final long negativeTtl;
+
+	private final ConcurrentHashMap<String, Answer> cache = new ConcurrentHashMap<String, Answer>();
+	private final ConcurrentHashMap<String, Boolean> inFlight = new ConcurrentHashMap<String, Boolean>();
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Cached outcome of a lookup, addresses is null if the name did not
+	 * resolve.
+	 */
+	private static final class Answer {
+		final InetAddress[] addresses;
+		final long expires;
+
+		Answer(final InetAddress[] addresses, final long expires) {
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+
+	HostResolver(final long positiveTtl, final long negativeTtl) {
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 60,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+				new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final Thread t = ProxyServer.newThread(r);
+						t.setName("HostResolver");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Address of the host as far as it is known right now, never blocks.
+	 *
+	 * @return Address of the host, or null if the host does not resolve or is
+	 *         not resolved yet. In the latter case resolution is started.
+	 */
+	InetAddress lookup(final String host) {
+		final InetAddress[] addresses = lookupAll(host);
+		return addresses == null ? null : addresses[0];
+	}
+
+	/**
+	 * All addresses of the host as far as they are known right now, see
+	 * lookup.
+	 */
+	InetAddress[] lookupAll(final String host) {
+		final Answer answer = cache.get(host);
+		if ((answer == null)
+				|| (answer.expires <= System.currentTimeMillis())) {
+			refresh(host);
+		}
+		return answer == null ? null : answer.addresses;
+	}
+
+	/**
+	 * Resolves the host on the calling thread, unless a fresh answer is
+	 * cached.
+	 *
+	 * @throws UnknownHostException
+	 *             If the host does not resolve, or did not when last tried.
+	 */
+	InetAddress resolve(final String host) throws UnknownHostException {
+		return resolveAll(host)[0];
+	}
+
+	/**
+	 * All addresses of the host, in the order InetAddress.getAllByName gives
+	 * them, see resolve.
+	 */
+	InetAddress[] resolveAll(final String host) throws UnknownHostException {
+		final Answer answer = cache.get(host);
+		if ((answer != null) && (answer.expires > System.currentTimeMillis())) {
+			if (answer.addresses == null) {
+				throw new UnknownHostException(host);
+			}
+			return answer.addresses;
+		}
+		try {
+			final InetAddress[] addresses = InetAddress.getAllByName(host);
+			put(host, new Answer(addresses, System.currentTimeMillis()
+					+ positiveTtl));
+			return addresses;
+		} catch (final UnknownHostException uhe) {
+			put(host, new Answer(null, System.currentTimeMillis()
+					+ negativeTtl));
+			throw uhe;
+		}
+	}
+
+	/**
+	 * Runs a task on the resolver threads. If they are too far behind a
+	 * thread of its own is started for it.
+	 */
+	void execute(final Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (final RejectedExecutionException ree) {
+			ProxyServer.newThread(task).start();
+		}
+	}
+
+	// Private methods
+	// ///////////////
+
+	private void refresh(final String host) {
+		if (inFlight.putIfAbsent(host, Boolean.TRUE) != null) {
+			return; // Already on its way.
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						resolve(host);
+					} catch (final UnknownHostException uhe) {
+					} finally {
+						inFlight.remove(host);
+					}
+				}
+			});
+		} catch (final RejectedExecutionException ree) {
+			// Too busy, will be tried again on the next lookup.
+			inFlight.remove(host);
+		}
+	}
+
+	private void put(final String host, final Answer answer) {
+		if (cache.size() >= MAX_ENTRIES) {
+			evict();
+		}
+		cache.put(host, answer);
+	}
+
+	/**
+	 * Drops expired answers, and if that is not enough arbitrary ones, to
+	 * keep the cache below MAX_ENTRIES.
+	 */
+	private void evict() {
+		final long now = System.currentTimeMillis();
+		final Iterator<Answer> it = cache.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires <= now) {
+				it.remove();
+			}
+		}
+		final Iterator<String> keys = cache.keySet().iterator();
+		while ((cache.size() >= MAX_ENTRIES * 3 / 4) && keys.hasNext()) {
+			keys.next();
+			keys.remove();
+		}
+	}
+
+	/**
+	 * Time to live in ms from a security property given in seconds, negative
+	 * values meaning forever.
+	 */
+	static long ttl(final String property, final long defaultTtl) {
+		final String val = Security.getProperty(property);
+		if (val == null) {
+			return defaultTtl;
+		}
+		try {
+			final long seconds = Long.parseLong(val.trim());
+			return seconds < 0 ? Long.MAX_VALUE / 2 : seconds * 1000;
+		} catch (final NumberFormatException nfe) {
+			return defaultTtl;
+		}
+	}
+}
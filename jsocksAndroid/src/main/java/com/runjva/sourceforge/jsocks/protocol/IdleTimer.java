@@ -0,0 +1,208 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel closing sessions which stayed idle for too long.
+ * <p>
+ * Instead of a socket timeout on every socket, which wakes up each blocked
+ * thread once per timeout just to find out whether it was idle, sessions
+ * watch themselves here and then block without timeout. A session only
+ * touches its entry when it reads, which is a volatile write; the entry stays
+ * in the slot of its first deadline. When that slot comes around a single
+ * thread checks the entries in it, moves the ones which were active meanwhile
+ * to the slot of their new deadline and runs the idle action of the others.
+ * <p>
+ * The wheel has WHEEL_SIZE slots of TICK ms each, deadlines further away wait
+ * for as many turns as needed. The thread sleeps until the next slot holding
+ * entries, and while no entries are watched until the next one is.
+ */
+final class IdleTimer implements Runnable {
+
+	static final int TICK = 1000;
+	static final int WHEEL_SIZE = 512;
+
+	private static IdleTimer shared = null;
+
+	/** Head of the list of entries in each slot. */
+	private final Entry[] wheel = new Entry[WHEEL_SIZE];
+	private int size = 0;
+	/** Last tick whose slot was processed. */
+	private long processed;
+
+	/**
+	 * A watched session.
+	 */
+	static final class Entry {
+		final long timeout;
+		final Runnable onIdle;
+		volatile long lastActive;
+
+		// Guarded by the timer.
+		long tick;
+		Entry prev, next;
+		boolean linked = false;
+
+		Entry(final long timeout, final Runnable onIdle) {
+			this.timeout = timeout;
+			this.onIdle = onIdle;
+			lastActive = System.currentTimeMillis();
+		}
+
+		/**
+		 * Records activity, pushing the deadline back.
+		 */
+		void touch() {
+			lastActive = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Timer shared by all sessions, started on first use.
+	 */
+	static synchronized IdleTimer shared() {
+		if (shared == null) {
+			shared = new IdleTimer();
+			final Thread t = ProxyServer.newThread(shared);
+			t.setName("IdleTimer");
+			t.setDaemon(true);
+			t.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Runs onIdle on the timer thread once the entry was not touched for
+	 * timeout ms, unless it was cancelled before. onIdle must not block.
+	 */
+	Entry watch(final long timeout, final Runnable onIdle) {
+		final Entry entry = new Entry(timeout, onIdle);
+		synchronized (this) {
+			if (size == 0) {
+				processed = System.currentTimeMillis() / TICK;
+			}
+			schedule(entry, entry.lastActive + timeout);
+			// It may be due before the slot the thread sleeps for.
+			notify();
+		}
+		return entry;
+	}
+
+	/**
+	 * Stops watching the entry, does nothing if it expired already.
+	 */
+	synchronized void cancel(final Entry entry) {
+		if (entry.linked) {
+			unlink(entry);
+		}
+	}
+
+	/** Number of entries watched. */
+	synchronized int size() {
+		return size;
+	}
+
+	public void run() {
+		final List<Entry> expired = new ArrayList<Entry>();
+		while (true) {
+			synchronized (this) {
+				try {
+					while (size == 0) {
+						wait();
+					}
+					final long now = System.currentTimeMillis();
+					final long current = now / TICK;
+					if (current <= processed) {
+						wait(nextTick() * TICK - now);
+						continue;
+					}
+					// A whole turn covers all slots, even after a long pause.
+					final long first = Math.max(processed + 1, current
+							- WHEEL_SIZE + 1);
+					for (long t = first; t <= current; t++) {
+						expire(t, now, expired);
+					}
+					processed = current;
+				} catch (final InterruptedException ie) {
+					return;
+				}
+			}
+
+			for (final Entry entry : expired) {
+				try {
+					entry.onIdle.run();
+				} catch (final RuntimeException re) {
+					ProxyServer.debug("Idle action failed", re);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	// Private methods
+	// ///////////////
+
+	/**
+	 * First tick after the processed one whose slot holds entries, the
+	 * thread sleeps until then.
+	 */
+	private long nextTick() {
+		for (long t = processed + 1; t <= processed + WHEEL_SIZE; t++) {
+			if (wheel[(int) (t % WHEEL_SIZE)] != null) {
+				return t;
+			}
+		}
+		return processed + WHEEL_SIZE;
+	}
+
+	/**
+	 * Checks the entries due in the slot of tick, collecting the expired
+	 * ones.
+	 */
+	private void expire(final long tick, final long now,
+			final List<Entry> expired) {
+		Entry entry = wheel[(int) (tick % WHEEL_SIZE)];
+		while (entry != null) {
+			final Entry next = entry.next;
+			if (entry.tick <= tick) {
+				unlink(entry);
+				final long deadline = entry.lastActive + entry.timeout;
+				if (now >= deadline) {
+					expired.add(entry);
+				} else {
+					schedule(entry, deadline);
+				}
+			}
+			entry = next;
+		}
+	}
+
+	private void schedule(final Entry entry, final long deadline) {
+		// Round up, an entry must never be checked before its deadline.
+		entry.tick = Math.max((deadline + TICK - 1) / TICK, processed + 1);
+		final int slot = (int) (entry.tick % WHEEL_SIZE);
+		entry.prev = null;
+		entry.next = wheel[slot];
+		if (entry.next != null) {
+			entry.next.prev = entry;
+		}
+		wheel[slot] = entry;
+		entry.linked = true;
+		size++;
+	}
+
+	private void unlink(final Entry entry) {
+		if (entry.prev != null) {
+			entry.prev.next = entry.next;
+		} else {
+			wheel[(int) (entry.tick % WHEEL_SIZE)] = entry.next;
+		}
+		if (entry.next != null) {
+			entry.next.prev = entry.prev;
+		}
+		entry.prev = entry.next = null;
+		entry.linked = false;
+		size--;
+	}
+}
@@ -1,11 +1,13 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class InetRange provides the means of defining the range of inetaddresses.
@@ -16,7 +18,11 @@ import java.util.Vector;
  * ranges (e.g. 100.200.300.0:100.200.300.255, which covers all addresses on on
  * someones local network). It also provides methods for checking wether given
  * address is in this range. Any number of ranges and standalone addresses can
- * be added to the range.
+ * be added to the range. Both IPv4 and IPv6 addresses are supported, IPv6
+ * ones are kept as prefixes and matched with a prefix trie.
+ * <P>
+ * Lookups do not lock the range, they use an immutable index which is
+ * compiled again after the range has been changed.
  */
 public class InetRange implements Cloneable {
 
@@ -26,6 +32,11 @@ public class InetRange implements Cloneable {
 
 	boolean useSeparateThread = true;
 
+	private volatile InetRangeIndex index = InetRangeIndex.EMPTY;
+	// Counts names resolved in the background. Shared with clones, which
+	// share the entries as well.
+	AtomicInteger resolved = new AtomicInteger();
+
 	/**
 	 * Creates the empty range.
 	 */
@@ -51,6 +62,11 @@ public class InetRange implements Cloneable {
 	 * 
 	 * <li>Range in the form host_from[: \t\n\r\f]host_to. <br>
 	 * That is two hostnames or ips separated by either whitespace or colon.
+	 * 
+	 * <li>IPv6 address, eg. 2001:db8::1, or range of IPv6 addresses separated
+	 * by whitespace.
+	 * 
+	 * <li>CIDR prefix, eg. 10.0.0.0/8 or 2001:db8::/32.
 	 * </UL>
 	 */
 	public synchronized boolean add(final String s0) {
@@ -87,26 +103,52 @@ public class InetRange implements Cloneable {
 					break;
 				}
 			}
-			entry = new Object[] { s, null, new Long(from), new Long(to) };
+			entry = new Object[] { s, null, new Long(from), new Long(to), null };
 			all.addElement(entry);
+			invalidate();
 
 		} else if (s.startsWith(".")) {
 			// Thing like: .myhost.com
 
 			end_names.addElement(s);
-			all.addElement(new Object[] { s, null, null, null });
+			all.addElement(new Object[] { s, null, null, null, null });
+			invalidate();
+		} else if (s.indexOf('/') >= 0) {
+			// Thing like: 10.0.0.0/8 or 2001:db8::/32
+
+			entry = cidr2entry(s);
+			if (entry == null) {
+				return false;
+			}
+			all.addElement(entry);
+			invalidate();
+		} else if (s.indexOf(':') != s.lastIndexOf(':')) {
+			// IPv6 address, or two of them separated by whitespace.
+
+			final StringTokenizer tokens = new StringTokenizer(s, " \t\r\n\f");
+			final long[] from = ip6(tokens.nextToken());
+			final long[] to = tokens.hasMoreTokens() ? ip6(tokens.nextToken())
+					: from;
+			if ((from == null) || (to == null)) {
+				return false;
+			}
+			entry = new Object[] { s, null, null, null,
+					prefixes6(from, to) };
+			all.addElement(entry);
+			invalidate();
 		} else {
 			final StringTokenizer tokens = new StringTokenizer(s, " \t\r\n\f:");
 			if (tokens.countTokens() > 1) {
-				entry = new Object[] { s, null, null, null };
+				entry = new Object[] { s, null, null, null, null };
 				resolve(entry, tokens.nextToken(), tokens.nextToken());
 				all.addElement(entry);
 			} else {
-				entry = new Object[] { s, null, null, null };
+				entry = new Object[] { s, null, null, null, null };
 				all.addElement(entry);
 				host_names.put(s, entry);
 				resolve(entry);
 			}
+			invalidate();
 
 		}
 
@@ -120,10 +162,11 @@ public class InetRange implements Cloneable {
 	 *            IP os the host which should be added to this range.
 	 */
 	public synchronized void add(final InetAddress ip) {
-		long from, to;
-		from = to = ip2long(ip);
-		all.addElement(new Object[] { ip.getHostName(), ip, new Long(from),
-				new Long(to) });
+		final Object[] entry = new Object[] { ip.getHostName(), ip, null, null,
+				null };
+		setRange(entry, ip, ip);
+		all.addElement(entry);
+		invalidate();
 	}
 
 	/**
@@ -137,9 +180,12 @@ public class InetRange implements Cloneable {
 	 *            IP where range ends(including).
 	 */
 	public synchronized void add(final InetAddress from, final InetAddress to) {
-		all.addElement(new Object[] {
-				from.getHostAddress() + ":" + to.getHostAddress(), null,
-				new Long(ip2long(from)), new Long(ip2long(to)) });
+		final Object[] entry = new Object[] {
+				from.getHostAddress() + ":" + to.getHostAddress(), null, null,
+				null, null };
+		setRange(entry, from, to);
+		all.addElement(entry);
+		invalidate();
 	}
 
 	/**
@@ -151,7 +197,7 @@ public class InetRange implements Cloneable {
 	 * @return true If host is in the range, false otherwise.
 	 * @see InetRange#contains(String,boolean)
 	 */
-	public synchronized boolean contains(final String host) {
+	public boolean contains(final String host) {
 		return contains(host, true);
 	}
 
@@ -171,6 +217,9 @@ public class InetRange implements Cloneable {
 	 * is not allways the full name,it is quite likely to be the same. Well it
 	 * was on my machine.
 	 * </ol>
+	 * Resolving never blocks, the address is taken from a shared cache. A host
+	 * which was not resolved yet is not in the range, its resolution is
+	 * started in the background for the next check.
 	 * 
 	 * @param host
 	 *            Host name to check.
@@ -179,9 +228,9 @@ public class InetRange implements Cloneable {
 	 *            required.
 	 * @return true If host is in the range, false otherwise.
 	 */
-	public synchronized boolean contains(final String host0,
-			final boolean attemptResolve) {
-		if (all.size() == 0) {
+	public boolean contains(final String host0, final boolean attemptResolve) {
+		final InetRangeIndex idx = index();
+		if (idx.size == 0) {
 			return false; // Empty range
 		}
 
@@ -190,30 +239,31 @@ public class InetRange implements Cloneable {
 			return false;
 		}
 
-		if (checkHost(host)) {
+		if (idx.containsHost(host)) {
 			return true;
 		}
-		if (checkHostEnding(host)) {
+		if (idx.containsEnding(host)) {
 			return true;
 		}
 
 		final long l = host2long(host);
 		if (l >= 0) {
-			return contains(l);
+			return idx.contains(l);
 		}
 
-		if (!attemptResolve) {
-			return false;
+		if (host.indexOf(':') >= 0) {
+			final long[] ip6 = ip6(host);
+			if (ip6 != null) {
+				return contains(idx, ip6);
+			}
 		}
 
-		try {
-			final InetAddress ip = InetAddress.getByName(host);
-			return contains(ip);
-		} catch (final UnknownHostException uhe) {
-
+		if (!attemptResolve) {
+			return false;
 		}
 
-		return false;
+		final InetAddress ip = HostResolver.shared.lookup(host);
+		return (ip != null) && contains(ip);
 	}
 
 	/**
@@ -223,14 +273,20 @@ public class InetRange implements Cloneable {
 	 *            Address of the host to check.
 	 * @return true If host is in the range, false otherwise.
 	 */
-	public synchronized boolean contains(final InetAddress ip) {
-		if (checkHostEnding(ip.getHostName())) {
+	public boolean contains(final InetAddress ip) {
+		final InetRangeIndex idx = index();
+		final byte[] addr = ip.getAddress();
+		if (addr.length == 4 ? idx.contains(ip2long(ip)) : idx.contains6(
+				bytes2long(addr, 0), bytes2long(addr, 8))) {
 			return true;
 		}
-		if (checkHost(ip.getHostName())) {
-			return true;
+		// Only ask for the name, which may mean a reverse lookup, if there
+		// are any names to compare it with.
+		if (!idx.hasNames()) {
+			return false;
 		}
-		return contains(ip2long(ip));
+		final String name = ip.getHostName();
+		return idx.containsEnding(name) || idx.containsHost(name);
 	}
 
 	/**
@@ -268,6 +324,7 @@ public class InetRange implements Cloneable {
 				all.removeElement(entry);
 				end_names.removeElement(s);
 				host_names.remove(s);
+				invalidate();
 				return true;
 			}
 		}
@@ -296,42 +353,53 @@ public class InetRange implements Cloneable {
 		new_range.all = (Vector<Object[]>) all.clone();
 		new_range.end_names = (Vector<String>) end_names.clone();
 		new_range.host_names = (Hashtable<String, Object[]>) host_names.clone();
+		new_range.resolved = resolved;
+		new_range.invalidate();
 		return new_range;
 	}
 
-	// Private methods
+	// Package methods
 	// ///////////////
+
 	/**
-	 * Same as previous but used internally, to avoid unnecessary convertion of
-	 * IPs, when checking subranges
+	 * Drops the compiled index, it is built again on the next lookup.
 	 */
-	private synchronized boolean contains(final long ip) {
-		final Enumeration<Object[]> enumx = all.elements();
-		while (enumx.hasMoreElements()) {
-			final Object[] obj = enumx.nextElement();
-			final Long from = obj[2] == null ? null : (Long) obj[2];
-			final Long to = obj[3] == null ? null : (Long) obj[3];
-			if ((from != null) && (from.longValue() <= ip)
-					&& (to.longValue() >= ip)) {
-				return true;
-			}
+	synchronized void invalidate() {
+		index = null;
+	}
 
+	// Private methods
+	// ///////////////
+
+	/**
+	 * The compiled index, built again if entries were changed or resolved
+	 * since.
+	 */
+	private InetRangeIndex index() {
+		final InetRangeIndex idx = index;
+		if ((idx != null) && (idx.generation == resolved.get())) {
+			return idx;
 		}
-		return false;
+		return compile();
 	}
 
-	private boolean checkHost(final String host) {
-		return host_names.containsKey(host);
+	/**
+	 * IPv6 lookup, IPv4 mapped addresses are looked up as IPv4.
+	 */
+	private static boolean contains(final InetRangeIndex idx, final long[] ip6) {
+		if ((ip6[0] == 0) && ((ip6[1] >>> 32) == 0xFFFF)) {
+			return idx.contains(ip6[1] & 0xFFFFFFFFL);
+		}
+		return idx.contains6(ip6[0], ip6[1]);
 	}
 
-	private boolean checkHostEnding(final String host) {
-		final Enumeration<String> enumx = end_names.elements();
-		while (enumx.hasMoreElements()) {
-			if (host.endsWith(enumx.nextElement())) {
-				return true;
-			}
+	private synchronized InetRangeIndex compile() {
+		final int generation = resolved.get();
+		if ((index == null) || (index.generation != generation)) {
+			index = new InetRangeIndex(all, host_names.keySet(), end_names,
+					generation);
 		}
-		return false;
+		return index;
 	}
 
 	private void resolve(final Object[] entry) {
@@ -340,7 +408,9 @@ public class InetRange implements Cloneable {
 		if (ip >= 0) {
 			entry[2] = entry[3] = new Long(ip);
 		} else {
-			final InetRangeResolver res = new InetRangeResolver(entry);
+			// Resolved in the background, the entry is filled in by
+			// setRange.
+			final InetRangeResolver res = new InetRangeResolver(this, entry);
 			res.resolve(useSeparateThread);
 		}
 	}
@@ -352,7 +422,8 @@ public class InetRange implements Cloneable {
 			entry[2] = new Long(f);
 			entry[3] = new Long(t);
 		} else {
-			final InetRangeResolver res = new InetRangeResolver(entry, from, to);
+			final InetRangeResolver res = new InetRangeResolver(this, entry,
+					from, to);
 			res.resolve(useSeparateThread);
 		}
 	}
@@ -360,8 +431,220 @@ public class InetRange implements Cloneable {
 	// Class methods
 	// /////////////
 
-	// Converts ipv4 to long value(unsigned int)
-	// /////////////////////////////////////////
+	/**
+	 * Fills in the addresses of an entry, as an IPv4 range or as IPv6
+	 * prefixes. Addresses of different families do not form a range.
+	 */
+	static void setRange(final Object[] entry, final InetAddress from,
+			final InetAddress to) {
+		final byte[] f = from.getAddress();
+		final byte[] t = to.getAddress();
+		if ((f.length == 4) && (t.length == 4)) {
+			entry[2] = new Long(ip2long(from));
+			entry[3] = new Long(ip2long(to));
+		} else if ((f.length == 16) && (t.length == 16)) {
+			entry[4] = prefixes6(new long[] { bytes2long(f, 0),
+					bytes2long(f, 8) }, new long[] { bytes2long(t, 0),
+					bytes2long(t, 8) });
+		}
+	}
+
+	/**
+	 * Entry for a prefix like 10.0.0.0/8 or 2001:db8::/32, null if it can not
+	 * be parsed.
+	 */
+	Object[] cidr2entry(final String s) {
+		final int slash = s.indexOf('/');
+		final String addr = s.substring(0, slash).trim();
+		final int len;
+		try {
+			len = Integer.parseInt(s.substring(slash + 1).trim());
+		} catch (final NumberFormatException nfe) {
+			return null;
+		}
+		if (addr.indexOf(':') >= 0) {
+			final long[] ip6 = ip6(addr);
+			if ((ip6 == null) || (len < 0) || (len > 128)) {
+				return null;
+			}
+			final long[] prefix = { ip6[0] & mask6(len, 0),
+					ip6[1] & mask6(len, 64), len };
+			return new Object[] { s, null, null, null, prefix };
+		}
+		if ((addr.length() == 0) || (len < 0) || (len > 32)) {
+			return null;
+		}
+		final long ip = host2long(addr);
+		if (ip < 0) {
+			return null;
+		}
+		final long mask = (0xFFFFFFFFL << (32 - len)) & 0xFFFFFFFFL;
+		return new Object[] { s, null, new Long(ip & mask),
+				new Long((ip & mask) | (~mask & 0xFFFFFFFFL)), null };
+	}
+
+	/**
+	 * Splits the IPv6 range from-to into the least number of prefixes, returned
+	 * as triples of high bits, low bits and prefix length. Null if from is
+	 * greater than to.
+	 */
+	static long[] prefixes6(final long[] from, final long[] to) {
+		BigInteger f = unsigned128(from);
+		final BigInteger t = unsigned128(to);
+		if (f.compareTo(t) > 0) {
+			return null;
+		}
+		final long[] prefixes = new long[3 * 256];
+		int n = 0;
+		while (f.compareTo(t) <= 0) {
+			// Largest block aligned at f, shrunk until it ends before t.
+			int bits = f.signum() == 0 ? 128 : f.getLowestSetBit();
+			while ((bits > 0)
+					&& (f.add(BigInteger.ONE.shiftLeft(bits)).subtract(
+							BigInteger.ONE).compareTo(t) > 0)) {
+				bits--;
+			}
+			prefixes[n++] = f.shiftRight(64).longValue();
+			prefixes[n++] = f.longValue();
+			prefixes[n++] = 128 - bits;
+			f = f.add(BigInteger.ONE.shiftLeft(bits));
+		}
+		final long[] result = new long[n];
+		System.arraycopy(prefixes, 0, result, 0, n);
+		return result;
+	}
+
+	private static BigInteger unsigned128(final long[] ip6) {
+		return BigInteger.valueOf(ip6[0] >>> 32).shiftLeft(32)
+				.or(BigInteger.valueOf(ip6[0] & 0xFFFFFFFFL)).shiftLeft(64)
+				.or(BigInteger.valueOf(ip6[1] >>> 32).shiftLeft(32))
+				.or(BigInteger.valueOf(ip6[1] & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Mask of a prefix of the given length, for the 64 bit half of an IPv6
+	 * address starting at bit offset.
+	 */
+	static long mask6(final int len, final int offset) {
+		final int bits = len - offset;
+		if (bits <= 0) {
+			return 0;
+		}
+		if (bits >= 64) {
+			return -1L;
+		}
+		return -1L << (64 - bits);
+	}
+
+	static long bytes2long(final byte[] addr, final int offset) {
+		long l = 0;
+		for (int i = 0; i < 8; i++) {
+			l = (l << 8) | (addr[offset + i] & 0xFF);
+		}
+		return l;
+	}
+
+	/**
+	 * Parses a textual IPv6 address, with or without brackets and zone, into
+	 * its high and low 64 bits. Returns null if it is not an IPv6 address, no
+	 * lookups are done.
+	 */
+	static long[] ip6(String s) {
+		if (s.startsWith("[") && s.endsWith("]")) {
+			s = s.substring(1, s.length() - 1);
+		}
+		final int zone = s.indexOf('%');
+		if (zone >= 0) {
+			s = s.substring(0, zone);
+		}
+		final int gap = s.indexOf("::");
+		if ((gap >= 0) && (s.indexOf("::", gap + 1) >= 0)) {
+			return null;
+		}
+		final int[] head;
+		final int[] tail;
+		if (gap >= 0) {
+			head = groups6(s.substring(0, gap), false);
+			tail = groups6(s.substring(gap + 2), true);
+			if ((head == null) || (tail == null)
+					|| (head.length + tail.length > 7)) {
+				return null;
+			}
+		} else {
+			head = groups6(s, true);
+			tail = new int[0];
+			if ((head == null) || (head.length != 8)) {
+				return null;
+			}
+		}
+		final int[] groups = new int[8];
+		System.arraycopy(head, 0, groups, 0, head.length);
+		System.arraycopy(tail, 0, groups, 8 - tail.length, tail.length);
+		long hi = 0;
+		long lo = 0;
+		for (int i = 0; i < 4; i++) {
+			hi = (hi << 16) | groups[i];
+			lo = (lo << 16) | groups[i + 4];
+		}
+		return new long[] { hi, lo };
+	}
+
+	/**
+	 * 16 bit groups of part of an IPv6 address, the last part may end with an
+	 * IPv4 address which makes two groups.
+	 */
+	private static int[] groups6(final String part, final boolean last) {
+		if (part.length() == 0) {
+			return new int[0];
+		}
+		final String[] tokens = part.split(":", -1);
+		int count = tokens.length;
+		final String tail = tokens[count - 1];
+		final boolean v4 = last && (tail.indexOf('.') >= 0);
+		final int[] groups = new int[v4 ? count + 1 : count];
+		if (v4) {
+			final String[] bytes = tail.split("\\.", -1);
+			if (bytes.length != 4) {
+				return null;
+			}
+			final int[] b = new int[4];
+			for (int i = 0; i < 4; i++) {
+				b[i] = parse(bytes[i], 10, 3, 255);
+				if (b[i] < 0) {
+					return null;
+				}
+			}
+			groups[count - 1] = (b[0] << 8) | b[1];
+			groups[count] = (b[2] << 8) | b[3];
+			count--;
+		}
+		for (int i = 0; i < count; i++) {
+			groups[i] = parse(tokens[i], 16, 4, 0xFFFF);
+			if (groups[i] < 0) {
+				return null;
+			}
+		}
+		return groups;
+	}
+
+	private static int parse(final String s, final int radix,
+			final int maxDigits, final int max) {
+		if ((s.length() == 0) || (s.length() > maxDigits)) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < s.length(); i++) {
+			final int d = Character.digit(s.charAt(i), radix);
+			if (d < 0) {
+				return -1;
+			}
+			value = value * radix + d;
+		}
+		return value <= max ? value : -1;
+	}
+
+	// Converts ipv4 to long value(unsigned int), -1 for IPv6
+	// //////////////////////////////////////////////////////
 	static long ip2long(final InetAddress ip) {
 		long l = 0;
 		final byte[] addr = ip.getAddress();
@@ -370,8 +653,8 @@ public class InetRange implements Cloneable {
 			for (int i = 0; i < 4; ++i) {
 				l += (((long) addr[i] & 0xFF) << 8 * (3 - i));
 			}
-		} else { // IPV6
-			return 0; // Have no idea how to deal with those
+		} else { // IPV6, see setRange
+			return -1;
 		}
 		return l;
 	}
@@ -379,8 +662,8 @@ public class InetRange implements Cloneable {
 	long host2long(final String host) {
 		long ip = 0;
 
-		// check if it's ddd.ddd.ddd.ddd
-		if (!Character.isDigit(host.charAt(0))) {
+		// check if it's ddd.ddd.ddd.ddd, and not IPv6
+		if (!Character.isDigit(host.charAt(0)) || (host.indexOf(':') >= 0)) {
 			return -1;
 		}
 
@@ -438,18 +721,22 @@ public class InetRange implements Cloneable {
 
 class InetRangeResolver implements Runnable {
 
+	InetRange range;
 	Object[] entry;
 
 	String from;
 	String to;
 
-	InetRangeResolver(final Object[] entry) {
+	InetRangeResolver(final InetRange range, final Object[] entry) {
+		this.range = range;
 		this.entry = entry;
 		from = null;
 		to = null;
 	}
 
-	InetRangeResolver(final Object[] entry, final String from, final String to) {
+	InetRangeResolver(final InetRange range, final Object[] entry,
+			final String from, final String to) {
+		this.range = range;
 		this.entry = entry;
 		this.from = from;
 		this.to = to;
@@ -461,8 +748,7 @@ class InetRangeResolver implements Runnable {
 
 	public final void resolve(final boolean inSeparateThread) {
 		if (inSeparateThread) {
-			final Thread t = new Thread(this);
-			t.start();
+			HostResolver.shared.execute(this);
 		} else {
 			run();
 		}
@@ -472,18 +758,17 @@ class InetRangeResolver implements Runnable {
 	public void run() {
 		try {
 			if (from == null) {
-				final InetAddress ip = InetAddress.getByName((String) entry[0]);
+				final InetAddress ip = HostResolver.shared
+						.resolve((String) entry[0]);
 				entry[1] = ip;
-				final Long l = new Long(InetRange.ip2long(ip));
-				entry[2] = l;
-				entry[3] = l;
+				InetRange.setRange(entry, ip, ip);
 			} else {
-				final InetAddress f = InetAddress.getByName(from);
-				final InetAddress t = InetAddress.getByName(to);
-				entry[2] = new Long(InetRange.ip2long(f));
-				entry[3] = new Long(InetRange.ip2long(t));
+				final InetAddress f = HostResolver.shared.resolve(from);
+				final InetAddress t = HostResolver.shared.resolve(to);
+				InetRange.setRange(entry, f, t);
 
 			}
+			range.resolved.incrementAndGet();
 		} catch (final UnknownHostException uhe) {
 			// System.err.println("Resolve failed for "+from+','+to+','+entry[0]);
 		}
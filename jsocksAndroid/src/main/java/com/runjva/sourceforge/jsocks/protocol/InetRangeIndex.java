@@ -0,0 +1,322 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable lookup structure compiled from the entries of an InetRange.
+ * <p>
+ * IPv4 address ranges are kept as sorted, merged arrays of primitive longs and
+ * searched with binary search. IPv6 prefixes are kept in a path compressed
+ * binary trie, a lookup costs at most one step per prefix bit. Host name endings are kept in a trie of
+ * reversed labels, so that checking a host costs one lookup per label of the
+ * host instead of one endsWith per ending. Instances are never changed after
+ * construction and can be read without locking.
+ */
+final class InetRangeIndex {
+
+	static final InetRangeIndex EMPTY = new InetRangeIndex();
+
+	/** Number of entries the index was built from, resolved or not. */
+	final int size;
+	/** Count of resolved names of the range at the time of building. */
+	final int generation;
+
+	private final long[] starts;
+	private final long[] ends;
+	private final Set<String> hosts;
+	private final Label endings;
+	private final Prefix6 prefixes6;
+
+	private InetRangeIndex() {
+		size = 0;
+		generation = 0;
+		starts = ends = new long[0];
+		hosts = new HashSet<String>();
+		endings = null;
+		prefixes6 = null;
+	}
+
+	/**
+	 * Compiles the index.
+	 *
+	 * @param entries
+	 *            Entries of the range, as kept by InetRange. Entries which are
+	 *            not resolved yet are left out.
+	 * @param hostNames
+	 *            Host names to be matched exactly.
+	 * @param endNames
+	 *            Host name endings, each starting with a dot.
+	 * @param generation
+	 *            Count of names resolved by the range so far.
+	 */
+	InetRangeIndex(final List<Object[]> entries, final Set<String> hostNames,
+			final List<String> endNames, final int generation) {
+		size = entries.size();
+		this.generation = generation;
+
+		long[][] ranges = new long[size][];
+		int count = 0;
+		Prefix6 root6 = null;
+		for (final Object[] entry : entries) {
+			final long[] p6 = (long[]) entry[4];
+			if (p6 != null) {
+				if (root6 == null) {
+					root6 = new Prefix6(0, 0, 0);
+				}
+				for (int i = 0; i < p6.length; i += 3) {
+					root6.add(p6[i], p6[i + 1], (int) p6[i + 2]);
+				}
+			}
+			final Long from = (Long) entry[2];
+			final Long to = (Long) entry[3];
+			if ((from != null) && (to != null)
+					&& (from.longValue() <= to.longValue())) {
+				ranges[count++] = new long[] { from.longValue(),
+						to.longValue() };
+			}
+		}
+		ranges = Arrays.copyOf(ranges, count);
+		Arrays.sort(ranges, new Comparator<long[]>() {
+			public int compare(final long[] a, final long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+
+		// Merge overlapping and adjacent ranges.
+		final long[] s = new long[count];
+		final long[] e = new long[count];
+		int merged = 0;
+		for (int i = 0; i < count; i++) {
+			if ((merged > 0) && (ranges[i][0] <= e[merged - 1] + 1)) {
+				e[merged - 1] = Math.max(e[merged - 1], ranges[i][1]);
+			} else {
+				s[merged] = ranges[i][0];
+				e[merged] = ranges[i][1];
+				merged++;
+			}
+		}
+		starts = Arrays.copyOf(s, merged);
+		ends = Arrays.copyOf(e, merged);
+
+		hosts = new HashSet<String>(hostNames);
+
+		Label root = null;
+		for (final String ending : endNames) {
+			if (root == null) {
+				root = new Label();
+			}
+			root.add(ending);
+		}
+		endings = root;
+		prefixes6 = root6;
+	}
+
+	/**
+	 * Wether the index has any host names or endings, that is wether checking
+	 * a host name can ever succeed.
+	 */
+	boolean hasNames() {
+		return (endings != null) || !hosts.isEmpty();
+	}
+
+	boolean containsHost(final String host) {
+		return hosts.contains(host);
+	}
+
+	/**
+	 * Same as checking host.endsWith(ending) for every ending in the range.
+	 */
+	boolean containsEnding(final String host) {
+		return (endings != null) && endings.matches(host);
+	}
+
+	boolean contains(final long ip) {
+		int lo = 0;
+		int hi = starts.length - 1;
+		// Find the last range starting at or before ip.
+		while (lo <= hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (starts[mid] <= ip) {
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return (hi >= 0) && (ends[hi] >= ip);
+	}
+
+	/**
+	 * IPv6 lookup, the address is given as its high and low 64 bits.
+	 */
+	boolean contains6(final long hi, final long lo) {
+		return (prefixes6 != null) && prefixes6.matches(hi, lo);
+	}
+
+	/**
+	 * Node of the IPv6 prefix trie, standing for the first len bits of hi:lo.
+	 * Chains of nodes with a single child are collapsed into one, so a node
+	 * may skip several bits. Prefixes covered by a shorter one are dropped.
+	 */
+	private static final class Prefix6 {
+		final long hi;
+		final long lo;
+		final int len;
+		boolean terminal;
+		Prefix6 zero;
+		Prefix6 one;
+
+		Prefix6(final long hi, final long lo, final int len) {
+			this.hi = hi & InetRange.mask6(len, 0);
+			this.lo = lo & InetRange.mask6(len, 64);
+			this.len = len;
+		}
+
+		void add(final long hi, final long lo, final int len) {
+			Prefix6 node = this;
+			while (!node.terminal) {
+				if (len == node.len) {
+					node.terminal = true;
+					node.zero = node.one = null;
+					return;
+				}
+				final int bit = bit(hi, lo, node.len);
+				final Prefix6 child = bit == 0 ? node.zero : node.one;
+				if (child == null) {
+					node.set(bit, leaf(hi, lo, len));
+					return;
+				}
+				final int common = common(hi, lo, child.hi, child.lo, Math.min(
+						len, child.len));
+				if (common == child.len) {
+					node = child;
+					continue;
+				}
+				// Split the edge to child at the first differing bit.
+				final Prefix6 fork = new Prefix6(hi, lo, common);
+				fork.set(bit(child.hi, child.lo, common), child);
+				if (common == len) {
+					fork.terminal = true;
+					fork.zero = fork.one = null;
+				} else {
+					fork.set(bit(hi, lo, common), leaf(hi, lo, len));
+				}
+				node.set(bit, fork);
+				return;
+			}
+		}
+
+		boolean matches(final long hi, final long lo) {
+			Prefix6 node = this;
+			while (node != null) {
+				if (common(hi, lo, node.hi, node.lo, node.len) < node.len) {
+					return false;
+				}
+				if (node.terminal) {
+					return true;
+				}
+				if (node.len == 128) {
+					return false;
+				}
+				node = bit(hi, lo, node.len) == 0 ? node.zero : node.one;
+			}
+			return false;
+		}
+
+		private void set(final int bit, final Prefix6 child) {
+			if (bit == 0) {
+				zero = child;
+			} else {
+				one = child;
+			}
+		}
+
+		private static Prefix6 leaf(final long hi, final long lo, final int len) {
+			final Prefix6 leaf = new Prefix6(hi, lo, len);
+			leaf.terminal = true;
+			return leaf;
+		}
+
+		/** Bit i of hi:lo, counting from the most significant. */
+		private static int bit(final long hi, final long lo, final int i) {
+			return (int) ((i < 64 ? hi >>> (63 - i) : lo >>> (127 - i)) & 1);
+		}
+
+		/** Length of the common prefix of two addresses, at most max. */
+		private static int common(final long hi1, final long lo1,
+				final long hi2, final long lo2, final int max) {
+			long x = hi1 ^ hi2;
+			int n;
+			if (x != 0) {
+				n = Long.numberOfLeadingZeros(x);
+			} else {
+				x = lo1 ^ lo2;
+				n = x == 0 ? 128 : 64 + Long.numberOfLeadingZeros(x);
+			}
+			return Math.min(n, max);
+		}
+	}
+
+	/**
+	 * Node of the reversed label trie. The ending .b.c is stored as the path
+	 * c, b; the node for b is marked as terminal. A host matches if its labels,
+	 * read from the right, pass a terminal node and have at least one more
+	 * label (possibly empty) left, which is exactly what endsWith checks, as
+	 * the ending starts with a dot.
+	 */
+	private static final class Label {
+		HashMap<String, Label> children;
+		boolean terminal;
+
+		void add(final String ending) {
+			// Skip the leading dot, the labels are separated by the rest.
+			Label node = this;
+			int end = ending.length();
+			while (true) {
+				final int dot = ending.lastIndexOf('.', end - 1);
+				final String label = ending.substring(dot + 1, end);
+				if (node.children == null) {
+					node.children = new HashMap<String, Label>();
+				}
+				Label next = node.children.get(label);
+				if (next == null) {
+					next = new Label();
+					node.children.put(label, next);
+				}
+				node = next;
+				if (dot <= 0) {
+					break;
+				}
+				end = dot;
+			}
+			node.terminal = true;
+		}
+
+		boolean matches(final String host) {
+			Label node = this;
+			int end = host.length();
+			while (true) {
+				final int dot = host.lastIndexOf('.', end - 1);
+				if (dot < 0) {
+					// Last label, nothing in front of it to satisfy the dot.
+					return false;
+				}
+				if (node.children == null) {
+					return false;
+				}
+				node = node.children.get(host.substring(dot + 1, end));
+				if (node == null) {
+					return false;
+				}
+				if (node.terminal) {
+					return true;
+				}
+				end = dot;
+			}
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+
+/**
+ * Non-blocking SOCKS4 and SOCKS5 proxy. An alternative to ProxyServer which
+ * serves all sessions from a small number of selector loops instead of using
+ * two threads per relayed connection.
+ * <p>
+ * Supports the CONNECT command only, with the SOCKS5 "no authentication"
+ * method. The given ServerAuthenticator is used for authorization of requests
+ * through checkRequest(ProxyMessage); its startSession method is never called,
+ * as it works on blocking streams. Proxy chaining set with ProxyServer.setProxy
+ * is not used, connections are always made directly.
+ * <p>
+ * Timeouts and the VpnService used to protect outgoing sockets are shared
+ * with ProxyServer, host names are resolved through the HostResolver cache.
+ * Unlike ProxyServer, the addresses of a name are tried one after the other
+ * instead of in parallel.
+ *
+ * @see ProxyServer
+ */
+public class NioProxyServer {
+
+	ServerAuthenticator auth;
+	ServerSocketChannel ss = null;
+	SelectorLoop[] loops;
+	int nextLoop = 0;
+
+	BufferPool pool = new BufferPool(BUF_SIZE, DEFAULT_POOLED_BUFFERS, true);
+
+	static final int BUF_SIZE = 8192;
+	static final int DEFAULT_POOLED_BUFFERS = 256;
+	static final int SWEEP_INTERVAL = 1000;
+	static final int MAX_POOLED_REQUESTS = 64;
+
+	// Public Constructors
+	// ///////////////////
+
+	/**
+	 * Creates a proxy server with given Authentication scheme, served by a
+	 * single selector loop.
+	 *
+	 * @param auth
+	 *            Authentication scheme to be used.
+	 */
+	public NioProxyServer(final ServerAuthenticator auth) {
+		this(auth, 1);
+	}
+
+	/**
+	 * Creates a proxy server with given Authentication scheme.
+	 *
+	 * @param auth
+	 *            Authentication scheme to be used.
+	 * @param loopCount
+	 *            Number of selector loops (threads) serving sessions.
+	 */
+	public NioProxyServer(final ServerAuthenticator auth, final int loopCount) {
+		this.auth = auth;
+		this.loops = new SelectorLoop[Math.max(1, loopCount)];
+	}
+
+	// Public methods
+	// ///////////////
+
+	/**
+	 * Sets up the pool of direct buffers used for relaying. Every session
+	 * leases two buffers, one per direction, for its lifetime. Must be called
+	 * before start.<br>
+	 * Default is 256 pooled buffers of 8K.
+	 *
+	 * @param bufferSize
+	 *            Size of a single buffer.
+	 * @param maxPooled
+	 *            Maximum number of idle buffers kept for reuse.
+	 */
+	public void setBufferPool(final int bufferSize, final int maxPooled) {
+		pool = new BufferPool(bufferSize, maxPooled, true);
+	}
+
+	/**
+	 * Start the Proxy server at given port.<br>
+	 * This methods blocks.
+	 */
+	public void start(final int port) {
+		start(port, 5, null);
+	}
+
+	/**
+	 * Create a server with the specified port, listen backlog, and local IP
+	 * address to bind to. If localIP is null, it will default accepting
+	 * connections on any/all local addresses.<br>
+	 * This methods blocks, accepting connections on the calling thread and
+	 * handing them over to the selector loops.
+	 */
+	public void start(final int port, final int backlog,
+			final InetAddress localIP) {
+		try {
+			ss = ServerSocketChannel.open();
+			ss.socket().bind(new InetSocketAddress(localIP, port), backlog);
+			final String address = ss.socket().getInetAddress()
+					.getHostAddress();
+			final int localPort = ss.socket().getLocalPort();
+			ProxyServer.debug("Starting NIO SOCKS Proxy on", address,
+					localPort);
+
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new SelectorLoop(this);
+				final Thread t = ProxyServer.newThread(loops[i]);
+				t.setName("NioProxyServer-" + i);
+				t.start();
+			}
+
+			while (true) {
+				final SocketChannel s = ss.accept();
+				ProxyServer.debug("Accepted from", s.socket().getInetAddress(),
+						s.socket().getPort());
+				final SelectorLoop loop = nextLoop();
+				if (loop != null) {
+					loop.register(s);
+				} else {
+					s.close();
+				}
+			}
+		} catch (final ClosedChannelException cce) {
+			// Stopped.
+		} catch (final IOException ioe) {
+			ioe.printStackTrace();
+		} finally {
+			for (int i = 0; i < loops.length; i++) {
+				if (loops[i] != null) {
+					loops[i].shutdown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop server operation. Closes the listening socket, which makes start
+	 * return, and all open sessions.
+	 */
+	public void stop() {
+		try {
+			if (ss != null) {
+				ss.close();
+			}
+		} catch (final IOException ioe) {
+		}
+	}
+
+	// Package methods
+	// ////////////////
+
+	/**
+	 * Next loop still running, null if all of them died.
+	 */
+	private SelectorLoop nextLoop() {
+		for (int i = 0; i < loops.length; i++) {
+			final SelectorLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			if (loop.running) {
+				return loop;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Single selector thread, owns all sessions registered with it. Sessions
+	 * are only touched from this thread, other threads hand work over through
+	 * execute.
+	 * <p>
+	 * A session failing with a runtime exception, be it from a cancelled key
+	 * or the authenticator, is closed on its own. Should the loop still die,
+	 * it is no longer handed connections and closes the ones it holds.
+	 */
+	static final class SelectorLoop implements Runnable {
+
+		final NioProxyServer server;
+		final Selector selector;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		final Set<NioSession> sessions = new HashSet<NioSession>();
+		final ArrayDeque<SocksRequest> requests = new ArrayDeque<SocksRequest>();
+		volatile boolean running = true;
+
+		SelectorLoop(final NioProxyServer server) throws IOException {
+			this.server = server;
+			this.selector = Selector.open();
+		}
+
+		void register(final SocketChannel s) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						sessions.add(new NioSession(server,
+								SelectorLoop.this, s));
+					} catch (final IOException ioe) {
+						ProxyServer.debug("Unable to register session", ioe);
+						try {
+							s.close();
+						} catch (final IOException e) {
+						}
+					}
+				}
+			});
+		}
+
+		void execute(final Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		/**
+		 * Request object for parsing a handshake, reused across sessions of
+		 * this loop.
+		 */
+		SocksRequest takeRequest() {
+			final SocksRequest request = requests.poll();
+			return request != null ? request : new SocksRequest();
+		}
+
+		void recycle(final SocksRequest request) {
+			if (requests.size() < MAX_POOLED_REQUESTS) {
+				request.clear();
+				requests.push(request);
+			}
+		}
+
+		public void run() {
+			long lastSweep = System.currentTimeMillis();
+			try {
+				while (running) {
+					selector.select(SWEEP_INTERVAL);
+
+					runTasks();
+
+					final Iterator<SelectionKey> keys = selector
+							.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						final NioSession session = (NioSession) key
+								.attachment();
+						try {
+							session.handle(key);
+						} catch (final RuntimeException re) {
+							ProxyServer.debug("Session failed", re);
+							session.close();
+						}
+					}
+
+					final long now = System.currentTimeMillis();
+					if (now - lastSweep >= SWEEP_INTERVAL) {
+						lastSweep = now;
+						sweep(now);
+					}
+				}
+			} catch (final IOException ioe) {
+				ProxyServer.debug("Selector loop failed", ioe);
+			} finally {
+				running = false;
+				// Registers the connections handed over meanwhile, to close
+				// them too.
+				runTasks();
+				final List<NioSession> open = new ArrayList<NioSession>(
+						sessions);
+				for (final NioSession session : open) {
+					session.close();
+				}
+				try {
+					selector.close();
+				} catch (final IOException ioe) {
+				}
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (final RuntimeException re) {
+					ProxyServer.debug("Selector loop task failed", re);
+				}
+			}
+		}
+
+		private void sweep(final long now) {
+			if (ProxyServer.iddleTimeout == 0) {
+				return;
+			}
+			final List<NioSession> expired = new ArrayList<NioSession>();
+			for (final NioSession session : sessions) {
+				if (now - session.lastReadTime >= ProxyServer.iddleTimeout) {
+					expired.add(session);
+				}
+			}
+			for (final NioSession session : expired) {
+				ProxyServer.debug("Session timed out");
+				session.close();
+			}
+		}
+	}
+}
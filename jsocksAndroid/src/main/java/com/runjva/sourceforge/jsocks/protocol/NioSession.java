@@ -0,0 +1,550 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of a single client connection served by NioProxyServer. Parses the
+ * SOCKS handshake, connects to the requested host and relays data in both
+ * directions. Only ever used from the thread of the owning selector loop.
+ */
+class NioSession {
+
+	static final int GREETING = 0;
+	static final int REQUEST = 1;
+	static final int RESOLVING = 2;
+	static final int CONNECTING = 3;
+	static final int RELAY = 4;
+	static final int CLOSED = 5;
+
+	final NioProxyServer server;
+	final NioProxyServer.SelectorLoop loop;
+
+	final SocketChannel client;
+	SocketChannel remote = null;
+	SelectionKey clientKey, remoteKey = null;
+
+	/**
+	 * Data read from the client: handshake first, then relayed data. Both
+	 * buffers are leased from the server pool and returned on close.
+	 */
+	ByteBuffer toRemote;
+	/** Data to be written to the client: replies, then relayed data. */
+	ByteBuffer toClient;
+
+	/**
+	 * Parsed request, taken from the pool of the selector loop and returned
+	 * to it once the session is connected or closed.
+	 */
+	SocksRequest msg = null;
+	/** Addresses of the target, tried in turn if the request has a name. */
+	InetAddress[] addresses = null;
+	int nextAddress;
+	int version = 5;
+	int state = GREETING;
+	/** Set once a success reply was sent, errors can then only close. */
+	boolean replied = false;
+	boolean closeWhenFlushed = false;
+	/**
+	 * End of stream read from either side, and passed on to the other once
+	 * the data before it was written. The session closes when both are.
+	 */
+	boolean clientEof, remoteEof, clientShut, remoteShut;
+	long lastReadTime;
+	final long startTime;
+	long connectStart;
+	long bytesToRemote, bytesToClient;
+
+	NioSession(final NioProxyServer server,
+			final NioProxyServer.SelectorLoop loop, final SocketChannel client)
+			throws IOException {
+		this.server = server;
+		this.loop = loop;
+		this.client = client;
+		lastReadTime = startTime = System.currentTimeMillis();
+
+		client.configureBlocking(false);
+		clientKey = client.register(loop.selector, SelectionKey.OP_READ, this);
+		toRemote = server.pool.lease();
+		toClient = server.pool.lease();
+		ProxyServer.metrics.sessionStarted();
+	}
+
+	/**
+	 * Called by the selector loop for every ready key of this session.
+	 */
+	void handle(final SelectionKey key) {
+		try {
+			if (!key.isValid()) {
+				return;
+			}
+			if (key == clientKey) {
+				if (key.isWritable()) {
+					flushToClient();
+				}
+				if ((state != CLOSED) && key.isReadable()) {
+					readClient();
+				}
+			} else if (key.isConnectable()) {
+				finishConnect();
+			} else {
+				if (key.isWritable()) {
+					flushToRemote();
+				}
+				if ((state != CLOSED) && key.isReadable()) {
+					readRemote();
+				}
+			}
+			updateInterest();
+		} catch (final IOException ioe) {
+			fail(ioe);
+		}
+	}
+
+	void close() {
+		if (state == CLOSED) {
+			return;
+		}
+		state = CLOSED;
+		ProxyServer.metrics.sessionEnded(System.currentTimeMillis()
+				- startTime, bytesToRemote + bytesToClient);
+		loop.sessions.remove(this);
+		releaseRequest();
+		server.pool.release(toRemote);
+		server.pool.release(toClient);
+		toRemote = toClient = null;
+		try {
+			client.close();
+		} catch (final IOException ioe) {
+		}
+		if (remote != null) {
+			try {
+				remote.close();
+			} catch (final IOException ioe) {
+			}
+		}
+	}
+
+	// Private methods
+	// ///////////////
+
+	private void readClient() throws IOException {
+		final int len = client.read(toRemote);
+		if (len < 0) {
+			if (state < RESOLVING) {
+				close();
+				return;
+			}
+			// While connecting the early data and the end of stream wait in
+			// toRemote, onConnected passes them on.
+			clientEof = true;
+			if (state == RELAY) {
+				flushToRemote();
+			}
+			return;
+		}
+		lastReadTime = System.currentTimeMillis();
+
+		switch (state) {
+		case GREETING:
+		case REQUEST:
+			readHandshake();
+			break;
+		case RELAY:
+			flushToRemote();
+			break;
+		default:
+			// Keep early data until the remote connection is established.
+		}
+	}
+
+	private void readRemote() throws IOException {
+		final int len = remote.read(toClient);
+		if (len < 0) {
+			remoteEof = true;
+			flushToClient();
+			return;
+		}
+		lastReadTime = System.currentTimeMillis();
+		bytesToClient += len;
+		ProxyServer.metrics.toClient(len);
+		flushToClient();
+	}
+
+	private void flushToRemote() throws IOException {
+		if (state == CLOSED) {
+			return;
+		}
+		if (toRemote.position() > 0) {
+			toRemote.flip();
+			final int len = remote.write(toRemote);
+			toRemote.compact();
+			bytesToRemote += len;
+			ProxyServer.metrics.toRemote(len);
+		}
+		if (clientEof && !remoteShut && (toRemote.position() == 0)) {
+			remoteShut = true;
+			remote.socket().shutdownOutput();
+			closeIfDone();
+		}
+	}
+
+	private void flushToClient() throws IOException {
+		if (toClient.position() > 0) {
+			toClient.flip();
+			client.write(toClient);
+			toClient.compact();
+		}
+		if (closeWhenFlushed && (toClient.position() == 0)) {
+			close();
+			return;
+		}
+		if (remoteEof && !clientShut && (toClient.position() == 0)) {
+			clientShut = true;
+			client.socket().shutdownOutput();
+			closeIfDone();
+		}
+	}
+
+	/**
+	 * Closes the session once end of stream was passed on in both
+	 * directions.
+	 */
+	private void closeIfDone() {
+		if (clientShut && remoteShut) {
+			close();
+		}
+	}
+
+	private void updateInterest() {
+		if (state == CLOSED) {
+			return;
+		}
+		int ops = 0;
+		if (!closeWhenFlushed && !clientEof && toRemote.hasRemaining()) {
+			ops |= SelectionKey.OP_READ;
+		}
+		if (toClient.position() > 0) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		clientKey.interestOps(ops);
+
+		if (state == RELAY) {
+			ops = 0;
+			if (!remoteEof && toClient.hasRemaining()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (toRemote.position() > 0) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			remoteKey.interestOps(ops);
+		}
+	}
+
+	private void fail(final IOException ioe) {
+		if ((state == CLOSED) || (state == RELAY) || (msg == null)) {
+			ProxyServer.debug("Session closed", ioe);
+			close();
+			return;
+		}
+		sendErrorMessage(ProxyServer.errorCode(ioe));
+		updateInterest();
+	}
+
+	// Handshake
+	// /////////
+
+	private void readHandshake() throws IOException {
+		boolean parsed = false;
+		toRemote.flip();
+		try {
+			if (state == GREETING) {
+				readGreeting();
+			}
+			if (state == REQUEST) {
+				parsed = readRequest();
+			}
+		} finally {
+			if (state != CLOSED) {
+				toRemote.compact();
+			}
+		}
+		if (parsed) {
+			// Only now toRemote holds just the early data, ready to be
+			// flushed should the connection be established right away.
+			handleRequest();
+			return;
+		}
+		if ((state <= REQUEST) && !toRemote.hasRemaining()) {
+			// Request does not fit into the buffer.
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+	}
+
+	private void readGreeting() throws IOException {
+		final int start = toRemote.position();
+		if (toRemote.remaining() < 1) {
+			return;
+		}
+		version = toRemote.get(start);
+		if (version == 4) {
+			state = REQUEST;
+			return;
+		}
+		if (version != 5) {
+			close();
+			return;
+		}
+		if (toRemote.remaining() < 2) {
+			return;
+		}
+		final int nMethods = toRemote.get(start + 1) & 0xFF;
+		if (toRemote.remaining() < 2 + nMethods) {
+			return;
+		}
+		toRemote.position(start + 2);
+		boolean found = false;
+		for (int i = 0; i < nMethods; ++i) {
+			if (toRemote.get() == 0) {
+				found = true;
+			}
+		}
+		toClient.put((byte) 5);
+		if (found) {
+			toClient.put((byte) 0);
+			state = REQUEST;
+		} else {
+			toClient.put((byte) 0xFF);
+			closeWhenFlushed = true;
+		}
+		flushToClient();
+	}
+
+	/**
+	 * Parses the request into msg, returns false if it is not complete yet.
+	 */
+	private boolean readRequest() throws IOException {
+		final SocksRequest request = loop.takeRequest();
+		boolean parsed = false;
+		try {
+			parsed = request.parse(toRemote);
+		} finally {
+			// Back to the pool if incomplete, or malformed and thrown.
+			if (!parsed) {
+				loop.recycle(request);
+			}
+		}
+		if (parsed) {
+			msg = request;
+		}
+		return parsed;
+	}
+
+	private void releaseRequest() {
+		if (msg != null) {
+			loop.recycle(msg);
+			msg = null;
+		}
+	}
+
+	private void handleRequest() throws IOException {
+		if (!server.auth.checkRequest(msg)) {
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+		ProxyServer.metrics.request(msg.command);
+		ProxyServer.log(msg);
+
+		if (msg.command != SocksProxyBase.SOCKS_CMD_CONNECT) {
+			throw new SocksException(SocksProxyBase.SOCKS_CMD_NOT_SUPPORTED);
+		}
+
+		if (ProxyServer.optimisticConnect) {
+			// Early data is kept in toRemote until the connection is up.
+			SocksRequest.writeReply(toClient, version,
+					SocksProxyBase.SOCKS_SUCCESS, null, 0);
+			replied = true;
+			flushToClient();
+		}
+
+		if (msg.ip != null) {
+			connect(msg.ip);
+			return;
+		}
+
+		final InetAddress[] cached = HostResolver.shared.lookupAll(msg.host);
+		if (cached != null) {
+			msg.ip = cached[0];
+			connect(cached);
+			return;
+		}
+
+		// Resolve on the resolver threads, never block the selector loop.
+		state = RESOLVING;
+		final String host = msg.host;
+		HostResolver.shared.execute(new Runnable() {
+			public void run() {
+				try {
+					final InetAddress[] addresses = HostResolver.shared
+							.resolveAll(host);
+					loop.execute(new Runnable() {
+						public void run() {
+							onResolved(addresses);
+						}
+					});
+				} catch (final UnknownHostException uhe) {
+					loop.execute(new Runnable() {
+						public void run() {
+							onResolveFailed();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private void onResolved(final InetAddress[] addresses) {
+		if (state != RESOLVING) {
+			return;
+		}
+		msg.ip = addresses[0];
+		try {
+			connect(addresses);
+			updateInterest();
+		} catch (final IOException ioe) {
+			fail(ioe);
+		} catch (final RuntimeException re) {
+			ProxyServer.debug("Session failed", re);
+			close();
+		}
+	}
+
+	private void onResolveFailed() {
+		if (state != RESOLVING) {
+			return;
+		}
+		sendErrorMessage(SocksProxyBase.SOCKS_HOST_UNREACHABLE);
+		updateInterest();
+	}
+
+	/**
+	 * Connects to the addresses of the target one after the other, until one
+	 * accepts the connection.
+	 */
+	private void connect(final InetAddress[] addresses) throws IOException {
+		this.addresses = addresses;
+		nextAddress = 0;
+		connectNext();
+	}
+
+	private void connectNext() throws IOException {
+		while (true) {
+			final InetAddress ip = addresses[nextAddress++];
+			try {
+				connect(ip);
+				return;
+			} catch (final IOException ioe) {
+				// Not if it was the relay which failed once connected.
+				if ((state != CONNECTING) || (nextAddress >= addresses.length)) {
+					throw ioe;
+				}
+				ProxyServer.debug("Connect failed, trying next address", ioe);
+				closeRemote();
+			}
+		}
+	}
+
+	private void connect(final InetAddress ip) throws IOException {
+		state = CONNECTING;
+		connectStart = System.nanoTime();
+		remote = SocketChannel.open();
+		remote.configureBlocking(false);
+		if (ProxyServer.vpnService != null) {
+			ProxyServer.vpnService.protect(remote.socket());
+		}
+		if (remote.connect(new InetSocketAddress(ip, msg.port))) {
+			onConnected();
+		} else {
+			remoteKey = remote.register(loop.selector,
+					SelectionKey.OP_CONNECT, this);
+		}
+	}
+
+	private void finishConnect() throws IOException {
+		try {
+			if (remote.finishConnect()) {
+				onConnected();
+			}
+		} catch (final IOException ioe) {
+			if ((state != CONNECTING) || (addresses == null)
+					|| (nextAddress >= addresses.length)) {
+				throw ioe;
+			}
+			ProxyServer.debug("Connect failed, trying next address", ioe);
+			closeRemote();
+			connectNext();
+		}
+	}
+
+	private void closeRemote() {
+		if (remoteKey != null) {
+			remoteKey.cancel();
+			remoteKey = null;
+		}
+		if (remote != null) {
+			try {
+				remote.close();
+			} catch (final IOException ioe) {
+			}
+			remote = null;
+		}
+	}
+
+	private void onConnected() throws IOException {
+		ProxyServer.metrics.connected(System.nanoTime() - connectStart);
+		ProxyServer.debug("Connected to", remote.socket().getInetAddress(),
+				remote.socket().getPort());
+
+		if (remoteKey == null) {
+			remoteKey = remote.register(loop.selector, 0, this);
+		}
+		if (!replied) {
+			SocksRequest.writeReply(toClient, version,
+					SocksProxyBase.SOCKS_SUCCESS, remote.socket()
+							.getLocalAddress(), remote.socket().getLocalPort());
+			replied = true;
+		}
+		releaseRequest();
+		state = RELAY;
+		flushToClient();
+		flushToRemote();
+	}
+
+	private void sendErrorMessage(final int error_code) {
+		ProxyServer.metrics.error(error_code);
+		if (replied) {
+			// The client was told it is connected, all we can do is close.
+			ProxyServer.debug("Optimistic connect failed");
+			close();
+			return;
+		}
+		if (remote != null) {
+			try {
+				remote.close();
+			} catch (final IOException ioe) {
+			}
+		}
+		SocksRequest.writeReply(toClient, version, error_code, null, 0);
+		releaseRequest();
+		closeWhenFlushed = true;
+		try {
+			flushToClient();
+		} catch (final IOException ioe) {
+			close();
+		}
+	}
+}
@@ -29,6 +29,12 @@ public abstract class ProxyMessage {
 	/** User field for SOCKS4 request messages */
 	public String user = null;
 
+	/**
+	 * All addresses of host, ip being the first. Only set by ProxyServer for
+	 * the host names it resolves, so that connecting can try them all.
+	 */
+	InetAddress[] addresses = null;
+
 	ProxyMessage(int command, InetAddress ip, int port) {
 		this.command = command;
 		this.ip = ip;
@@ -111,8 +117,15 @@ public abstract class ProxyMessage {
 	}
 
 	static final String bytes2IPV6(byte[] addr, int offset) {
-		// Have no idea how they look like!
-		return null;
+		final StringBuilder sb = new StringBuilder(39);
+		for (int i = offset; i < offset + 16; i += 2) {
+			if (i > offset) {
+				sb.append(':');
+			}
+			sb.append(Integer.toHexString(((addr[i] & 0xFF) << 8)
+					| (addr[i + 1] & 0xFF)));
+		}
+		return sb.toString();
 	}
 
 }
@@ -0,0 +1,141 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Traffic counters of the sessions served by ProxyServer and NioProxyServer.
+ * <p>
+ * A single instance, ProxyServer.getMetrics(), is shared by all servers of
+ * the process. Sessions record into it as they go: counters are plain atomic
+ * adds and histograms are lock free, so recording costs next to nothing on
+ * the relay paths. Readers take a snapshot, which copies the current values
+ * without stopping the sessions.
+ * <p>
+ * Bytes are counted as relayed, SOCKS handshakes are not included. Error
+ * codes are the SOCKS5 reply codes sent, or which would have been sent, to
+ * the client; for SOCKS4 clients they are mapped to REPLY_REJECTED on the
+ * wire but counted here with their SOCKS5 code.
+ */
+public final class ProxyMetrics {
+
+	/** Largest SOCKS5 reply code, SOCKS_ADDR_NOT_SUPPORTED. */
+	static final int MAX_ERROR = SocksProxyBase.SOCKS_ADDR_NOT_SUPPORTED;
+
+	private final AtomicLong activeSessions = new AtomicLong();
+	private final AtomicLong totalSessions = new AtomicLong();
+	private final AtomicLongArray commands = new AtomicLongArray(4);
+	private final AtomicLongArray errors = new AtomicLongArray(MAX_ERROR + 1);
+	private final AtomicLong bytesToRemote = new AtomicLong();
+	private final AtomicLong bytesToClient = new AtomicLong();
+
+	private final Histogram connectLatency = new Histogram();
+	private final Histogram sessionLifetime = new Histogram();
+	private final Histogram sessionBytes = new Histogram();
+
+	/**
+	 * Values of the metrics at one point in time.
+	 */
+	public static final class Snapshot {
+		/** Sessions currently open. */
+		public final long activeSessions;
+		/** Sessions opened so far. */
+		public final long totalSessions;
+		/**
+		 * Requests received, indexed by command: SOCKS_CMD_CONNECT,
+		 * SOCKS_CMD_BIND and SOCKS_CMD_UDP_ASSOCIATE. Index 0 counts unknown
+		 * commands.
+		 */
+		public final long[] commands;
+		/**
+		 * Failed requests, indexed by SOCKS5 reply code, SOCKS_FAILURE up to
+		 * SOCKS_ADDR_NOT_SUPPORTED.
+		 */
+		public final long[] errors;
+		/** Bytes relayed from clients to remote hosts. */
+		public final long bytesToRemote;
+		/** Bytes relayed from remote hosts to clients. */
+		public final long bytesToClient;
+		/**
+		 * Time in microseconds it took to connect to the requested host, for
+		 * successful CONNECT requests.
+		 */
+		public final Histogram.Snapshot connectLatency;
+		/** Lifetime of closed sessions in milliseconds. */
+		public final Histogram.Snapshot sessionLifetime;
+		/** Bytes relayed in both directions by closed sessions. */
+		public final Histogram.Snapshot sessionBytes;
+
+		Snapshot(final ProxyMetrics m) {
+			activeSessions = m.activeSessions.get();
+			totalSessions = m.totalSessions.get();
+			commands = copy(m.commands);
+			errors = copy(m.errors);
+			bytesToRemote = m.bytesToRemote.get();
+			bytesToClient = m.bytesToClient.get();
+			connectLatency = m.connectLatency.snapshot();
+			sessionLifetime = m.sessionLifetime.snapshot();
+			sessionBytes = m.sessionBytes.snapshot();
+		}
+
+		private static long[] copy(final AtomicLongArray a) {
+			final long[] c = new long[a.length()];
+			for (int i = 0; i < c.length; i++) {
+				c[i] = a.get(i);
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * Copies the current values.
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	// Package methods
+	// ///////////////
+
+	void sessionStarted() {
+		activeSessions.incrementAndGet();
+		totalSessions.incrementAndGet();
+	}
+
+	/**
+	 * @param lifetime
+	 *            Time the session was open, in ms.
+	 * @param bytes
+	 *            Bytes relayed by the session in both directions.
+	 */
+	void sessionEnded(final long lifetime, final long bytes) {
+		activeSessions.decrementAndGet();
+		sessionLifetime.record(lifetime);
+		sessionBytes.record(bytes);
+	}
+
+	void request(final int command) {
+		commands.incrementAndGet((command > 0) && (command < 4) ? command : 0);
+	}
+
+	/**
+	 * @param nanos
+	 *            Time the connect took, as measured with System.nanoTime().
+	 */
+	void connected(final long nanos) {
+		connectLatency.record(nanos / 1000);
+	}
+
+	void error(final int code) {
+		errors.incrementAndGet((code > 0) && (code <= MAX_ERROR) ? code
+				: SocksProxyBase.SOCKS_FAILURE);
+	}
+
+	void toRemote(final int bytes) {
+		bytesToRemote.addAndGet(bytes);
+	}
+
+	void toClient(final int bytes) {
+		bytesToClient.addAndGet(bytes);
+	}
+}
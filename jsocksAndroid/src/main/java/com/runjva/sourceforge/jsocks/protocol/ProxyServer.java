@@ -8,11 +8,19 @@ import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.NoRouteToHostException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.SuppressLint;
 import android.net.VpnService;
@@ -45,23 +53,51 @@ public class ProxyServer implements Runnable {
 	OutputStream out, remote_out;
 
 	int mode;
+	/** Set once a success reply was sent, errors can then only close. */
+	boolean replied = false;
 	static final int START_MODE = 0;
 	static final int ACCEPT_MODE = 1;
 	static final int PIPE_MODE = 2;
 	static final int ABORT_MODE = 3;
+	static final int REJECT_MODE = 4;
 
 	static final int BUF_SIZE = 8192;
+	static final BufferPool pipeBuffers = new BufferPool(BUF_SIZE, 64, false);
 
 	Thread pipe_thread1, pipe_thread2;
-	long lastReadTime;
+	/** Watches the session for iddleTimeout while it is not waiting. */
+	volatile IdleTimer.Entry idle = null;
+	/** Directions of the relay which did not reach end of stream yet. */
+	int openDirections = 2;
+	/** Bytes relayed by this session, each written by one pipe thread. */
+	volatile long bytesToRemote, bytesToClient;
 
 	static int iddleTimeout = 180000; // 3 minutes
 	static int acceptTimeout = 180000; // 3 minutes
+	static int connectTimeout = 0; // system default
+	static boolean optimisticConnect = false;
+
+	static int maxSessions = 0; // unlimited
+	static int sessionQueueSize = 0;
+	static int sessionQueueTimeout = 10000; // 10 seconds
+	static final int REJECT_TIMEOUT = 2000;
+	static final int REJECT_QUEUE_SIZE = 32;
+
+	ThreadPoolExecutor sessionExecutor = null;
+	ThreadPoolExecutor rejectExecutor = null;
+	final AtomicLong acceptedSessions = new AtomicLong();
+	final AtomicLong rejectedSessions = new AtomicLong();
+	static final ProxyMetrics metrics = new ProxyMetrics();
 
 	static SocksProxyBase proxy;
+	static UpstreamPool upstreamPool = null;
+	static int upstreamPoolSize = 0;
+	static int upstreamIdleTimeout = 30000; // 30 seconds
 
 	static VpnService vpnService;
 
+	static ThreadFactory threadFactory = null;
+
 	static boolean DEBUG = false;
 	
 	// Public Constructors
@@ -104,6 +140,27 @@ public class ProxyServer implements Runnable {
 		proxy = p;
 		// FIXME: Side effect.
 		UDPRelayServer.proxy = proxy;
+		resetUpstreamPool();
+	}
+
+	/**
+	 * Keeps sessions with the proxy set with setProxy ready for use.
+	 * <p>
+	 * Each session is connected to the proxy and has done method negotiation
+	 * and authentication, so a CONNECT only has to send the request and wait
+	 * for the reply. Sessions not used within the idle timeout are closed and
+	 * replaced.<br>
+	 * Default size is 0, no sessions are kept.
+	 * 
+	 * @param size
+	 *            Number of sessions to keep ready, 0 disables the pool.
+	 * @param idleTimeout
+	 *            How long in ms a session may wait for use.
+	 */
+	public static void setUpstreamPool(final int size, final int idleTimeout) {
+		upstreamPoolSize = size;
+		upstreamIdleTimeout = idleTimeout;
+		resetUpstreamPool();
 	}
 
 	public static void setVpnService (final VpnService v)
@@ -119,6 +176,33 @@ public class ProxyServer implements Runnable {
 		return proxy;
 	}
 
+	/**
+	 * Sets wether CONNECT requests are answered optimistically.
+	 * <p>
+	 * If set, the success reply is sent before the host name of the target is
+	 * resolved and the connection is made, so the client can send its first
+	 * data, e.g. a TLS ClientHello, while the server connects. The data is forwarded once the connection is
+	 * up. The reply then reports 0.0.0.0:0 as bound address, and if the
+	 * connection fails the client connection is closed instead of getting an
+	 * error reply. Used by both ProxyServer and NioProxyServer.<br>
+	 * Default is false.
+	 */
+	public static void setOptimisticConnect(final boolean optimistic) {
+		optimisticConnect = optimistic;
+	}
+
+	/**
+	 * Sets the timeout for direct connections to the target of a CONNECT
+	 * request, for all its addresses together. If the host name of the target
+	 * resolves to several addresses, they are tried in parallel, see
+	 * HappyEyeballsConnector.<br>
+	 * Zero timeout implies the timeout of the system.<br>
+	 * Default is zero.
+	 */
+	public static void setConnectTimeout(final int timeout) {
+		connectTimeout = timeout;
+	}
+
 	/**
 	 * Sets the timeout for connections, how long shoud server wait for data to
 	 * arrive before dropping the connection.<br>
@@ -129,6 +213,42 @@ public class ProxyServer implements Runnable {
 		iddleTimeout = timeout;
 	}
 
+	/**
+	 * Limits the number of sessions served concurrently by servers started
+	 * afterwards. Connections accepted while all sessions are busy wait in a
+	 * queue of the given size, if the queue is full as well or they waited
+	 * longer than the queue timeout they are rejected with a SOCKS failure
+	 * reply.<br>
+	 * Zero maximum implies no limit, every session gets its own thread.<br>
+	 * Default is no limit.
+	 */
+	public static void setMaxSessions(final int max, final int queueSize) {
+		maxSessions = max;
+		sessionQueueSize = queueSize;
+	}
+
+	/**
+	 * Sets how long a connection may wait for a free session when sessions
+	 * are limited, see setMaxSessions. Sessions may be long-lived, so a
+	 * client should rather be told to retry than wait for one to end.<br>
+	 * Zero timeout implies infinity.<br>
+	 * Default timeout is 10 seconds.
+	 */
+	public static void setSessionQueueTimeout(final int timeout) {
+		sessionQueueTimeout = timeout;
+	}
+
+	/**
+	 * Sets the factory used for all threads started by the server: sessions,
+	 * both directions of the relayed connections and UDP relays. Allows
+	 * running the blocking sessions on lightweight threads where the runtime
+	 * provides them.<br>
+	 * Null restores the default, plain platform threads.
+	 */
+	public static void setThreadFactory(final ThreadFactory factory) {
+		threadFactory = factory;
+	}
+
 	/**
 	 * Sets the timeout for BIND command, how long the server should wait for
 	 * the incoming connection.<br>
@@ -157,6 +277,15 @@ public class ProxyServer implements Runnable {
 		UDPRelayServer.setDatagramSize(size);
 	}
 
+	/**
+	 * Sets the maximal number of datagrams the UDPRelayServer takes from a
+	 * socket at once, between 1 and 64.<br>
+	 * Default is 64.
+	 */
+	public static void setUDPBatchSize(final int size) {
+		UDPRelayServer.setBatchSize(size);
+	}
+
 	/**
 	 * Start the Proxy server at given port.<br>
 	 * This methods blocks.
@@ -182,21 +311,79 @@ public class ProxyServer implements Runnable {
 			final int localPort = ss.getLocalPort();
 			debug("Starting SOCKS Proxy on: {}:{}", address, localPort);
 
+			if (maxSessions > 0) {
+				startExecutors();
+			}
+
 			while (true) {
 				final Socket s = ss.accept();
-				final String hostName = s.getInetAddress().getHostName();
-				final int port2 = s.getPort();
-				debug("Accepted from:{}:{}", hostName, port2);
+				debug("Accepted from", s.getInetAddress(), s.getPort());
+				acceptedSessions.incrementAndGet();
 
 				final ProxyServer ps = new ProxyServer(auth, s);
-				(new Thread(ps)).start();
+				if (sessionExecutor == null) {
+					newThread(ps).start();
+					continue;
+				}
+				watchQueued(ps);
+				try {
+					sessionExecutor.execute(ps);
+				} catch (final RejectedExecutionException ree) {
+					ps.unwatchIdle();
+					reject(ps);
+				}
 			}
 		} catch (final Exception ioe) {
 			ioe.printStackTrace();
 		} finally {
+			if (sessionExecutor != null) {
+				sessionExecutor.shutdown();
+				rejectExecutor.shutdown();
+			}
 		}
 	}
 
+	/**
+	 * Number of connections accepted by this server so far, including the
+	 * rejected ones.
+	 */
+	public long getAcceptedSessions() {
+		return acceptedSessions.get();
+	}
+
+	/**
+	 * Number of connections rejected so far because the session limit set
+	 * with setMaxSessions was reached.
+	 */
+	public long getRejectedSessions() {
+		return rejectedSessions.get();
+	}
+
+	/**
+	 * Traffic metrics of all sessions served in this process, by ProxyServer
+	 * as well as NioProxyServer.
+	 */
+	public static ProxyMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Number of accepted connections currently waiting for a free session.
+	 */
+	public int getQueuedSessions() {
+		final ThreadPoolExecutor executor = sessionExecutor;
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * Number of sessions currently being served, or -1 if sessions are not
+	 * limited.
+	 */
+	public int getActiveSessions() {
+		final ThreadPoolExecutor executor = sessionExecutor;
+		return executor == null ? -1 : executor.getActiveCount();
+	}
+
 	/**
 	 * Stop server operation.It would be wise to interrupt thread running the
 	 * server afterwards.
@@ -215,6 +402,10 @@ public class ProxyServer implements Runnable {
 	public void run() {
 		switch (mode) {
 		case START_MODE:
+			// No longer queued.
+			unwatchIdle();
+			final long startTime = System.currentTimeMillis();
+			metrics.sessionStarted();
 			try {
 				startSession();
 			} catch (final IOException ioe) {
@@ -225,10 +416,13 @@ public class ProxyServer implements Runnable {
 				if (auth != null) {
 					auth.endSession();
 				}
+				metrics.sessionEnded(System.currentTimeMillis() - startTime,
+						bytesToRemote + bytesToClient);
 				debug("Main thread(client->remote)stopped.");
 			}
 			break;
 		case ACCEPT_MODE:
+			boolean draining = false;
 			try {
 				doAccept();
 				mode = PIPE_MODE;
@@ -236,23 +430,42 @@ public class ProxyServer implements Runnable {
 				// have
 				// been accepted.
 				pipe(remote_in, out);
+				draining = halfClose(sock);
 			} catch (final IOException ioe) {
 				// log("Accept exception:"+ioe);
 				handleException(ioe);
 			} finally {
-				abort();
+				if (!draining) {
+					abort();
+				}
 				debug("Accept thread(remote->client) stopped");
 			}
 			break;
 		case PIPE_MODE:
+			draining = false;
 			try {
 				pipe(remote_in, out);
+				// The other thread aborts once the client is done too.
+				draining = halfClose(sock);
 			} catch (final IOException ioe) {
 			} finally {
-				abort();
+				if (!draining) {
+					abort();
+				}
 				debug("Support thread(remote->client) stopped");
 			}
 			break;
+		case REJECT_MODE:
+			try {
+				rejectSession();
+			} catch (final IOException ioe) {
+			} finally {
+				abort();
+				if (auth != null) {
+					auth.endSession();
+				}
+			}
+			break;
 		case ABORT_MODE:
 			break;
 		default:
@@ -260,10 +473,95 @@ public class ProxyServer implements Runnable {
 		}
 	}
 
+	// Package methods
+	// ///////////////
+
+	/**
+	 * Creates, but does not start, a thread using the factory set with
+	 * setThreadFactory.
+	 */
+	static Thread newThread(final Runnable r) {
+		final ThreadFactory factory = threadFactory;
+		return factory == null ? new Thread(r) : factory.newThread(r);
+	}
+
+	static final ThreadFactory FACTORY = new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			return ProxyServer.newThread(r);
+		}
+	};
+
 	// Private methods
 	// ///////////////
+	private void startExecutors() {
+		final BlockingQueue<Runnable> queue;
+		if (sessionQueueSize > 0) {
+			queue = new ArrayBlockingQueue<Runnable>(sessionQueueSize);
+		} else {
+			queue = new SynchronousQueue<Runnable>();
+		}
+		sessionExecutor = new ThreadPoolExecutor(maxSessions, maxSessions,
+				60, TimeUnit.SECONDS, queue, FACTORY);
+		sessionExecutor.allowCoreThreadTimeOut(true);
+
+		// Rejections are answered on a thread of their own, so that a slow
+		// client can not hold up the accept loop. If even that falls behind
+		// the connection is just dropped.
+		rejectExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(REJECT_QUEUE_SIZE), FACTORY,
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(final Runnable r,
+							final ThreadPoolExecutor executor) {
+						((ProxyServer) r).abort();
+					}
+				});
+		rejectExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Rejects the session if it is still queued after sessionQueueTimeout.
+	 * Uses its idle entry, which the session cancels when it starts.
+	 */
+	private void watchQueued(final ProxyServer ps) {
+		if (sessionQueueTimeout == 0) {
+			return;
+		}
+		ps.idle = IdleTimer.shared().watch(sessionQueueTimeout,
+				new Runnable() {
+					public void run() {
+						if (sessionExecutor.remove(ps)) {
+							debug("Session queued for too long");
+							reject(ps);
+						}
+					}
+				});
+	}
+
+	private void reject(final ProxyServer ps) {
+		rejectedSessions.incrementAndGet();
+		debug("Too many sessions, rejecting connection");
+		ps.mode = REJECT_MODE;
+		rejectExecutor.execute(ps);
+	}
+
+	/**
+	 * Reads the request of a client which can not be served right now and
+	 * replies with SOCKS_FAILURE.
+	 */
+	private void rejectSession() throws IOException {
+		sock.setSoTimeout(REJECT_TIMEOUT);
+		auth = auth.startSession(sock);
+		if (auth == null) {
+			return;
+		}
+		in = auth.getInputStream();
+		out = auth.getOutputStream();
+		msg = readMsg(in);
+		sendErrorMessage(SocksProxyBase.SOCKS_FAILURE);
+	}
+
 	private void startSession() throws IOException {
-		sock.setSoTimeout(iddleTimeout);
+		watchIdle();
 
 		try {
 			auth = auth.startSession(sock);
@@ -289,13 +587,20 @@ public class ProxyServer implements Runnable {
 		if (!auth.checkRequest(msg)) {
 			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
 		}
+		metrics.request(msg.command);
 
+		if ((msg.ip == null) && !(msg instanceof Socks5Message)) {
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+		if (optimisticConnect
+				&& (msg.command == SocksProxyBase.SOCKS_CMD_CONNECT)) {
+			// Let the client send while resolving and connecting, its data
+			// waits in the socket until the pipe starts.
+			writeConnectReply(msg, null, 0);
+		}
 		if (msg.ip == null) {
-			if (msg instanceof Socks5Message) {
-				msg.ip = InetAddress.getByName(msg.host);
-			} else {
-				throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
-			}
+			msg.addresses = InetAddress.getAllByName(msg.host);
+			msg.ip = msg.addresses[0];
 		}
 		log(msg);
 
@@ -328,7 +633,21 @@ public class ProxyServer implements Runnable {
 		if (mode == PIPE_MODE) {
 			return;
 		}
+		final int error_code = errorCode(ioe);
+		if (replied) {
+			// Optimistic reply was sent already, the session just closes.
+			metrics.error(error_code);
+			return;
+		}
 
+		sendErrorMessage(error_code);
+	}
+
+	/**
+	 * Maps an exception raised while serving a request to the SOCKS reply code
+	 * which should be sent back to the client.
+	 */
+	static int errorCode(final IOException ioe) {
 		int error_code = SocksProxyBase.SOCKS_FAILURE;
 
 		if (ioe instanceof SocksException) {
@@ -345,47 +664,62 @@ public class ProxyServer implements Runnable {
 				|| (error_code < 0)) {
 			error_code = SocksProxyBase.SOCKS_FAILURE;
 		}
-
-		sendErrorMessage(error_code);
+		return error_code;
 	}
 
 	@SuppressLint("NewApi")
 	private void onConnect(final ProxyMessage msg) throws IOException {
 		Socket s;
 
+		final long connectStart = System.nanoTime();
 		if (proxy == null) {
-			
-			s = SocketChannel.open().socket();
-			if ((null != s) && (null != vpnService)) {
-			    vpnService.protect(s);
+			InetAddress[] addresses = { msg.ip };
+			if (msg.addresses != null) {
+				addresses = msg.addresses;
 			}
-			
-			s.connect(new InetSocketAddress(msg.ip,msg.port));
-			
+			s = HappyEyeballsConnector.connect(addresses, msg.port,
+					connectTimeout, vpnService);
 		} else {
-			s = new SocksSocket(proxy, msg.ip, msg.port);
+			final UpstreamPool pool = upstreamPool;
+			if (pool != null) {
+				s = new SocksSocket(pool, msg.ip, msg.port);
+			} else {
+				s = new SocksSocket(proxy, msg.ip, msg.port);
+			}
 
 			if (vpnService != null)
 				vpnService.protect(s);
 		}
+		metrics.connected(System.nanoTime() - connectStart);
 
-			
 		debug("Connected to " + s.getInetAddress() + ":" + s.getPort());
 
-		ProxyMessage response = null;
-		final InetAddress localAddress = s.getLocalAddress();
-		final int localPort = s.getLocalPort();
+		if (!replied) {
+			writeConnectReply(msg, s.getLocalAddress(), s.getLocalPort());
+		}
+		startPipe(s);
+	}
 
+	/**
+	 * Sends the success reply to a CONNECT request, with the given bound
+	 * address or 0.0.0.0:0 if localAddress is null.
+	 */
+	private void writeConnectReply(final ProxyMessage msg,
+			InetAddress localAddress, final int localPort) throws IOException {
+		if (localAddress == null) {
+			// Named, so that the message does not look it up.
+			localAddress = InetAddress.getByAddress("0.0.0.0", new byte[4]);
+		}
+		ProxyMessage response = null;
 		if (msg instanceof Socks5Message) {
 			final int cmd = SocksProxyBase.SOCKS_SUCCESS;
 			response = new Socks5Message(cmd, localAddress, localPort);
 		} else {
 			final int cmd = Socks4Message.REPLY_OK;
 			response = new Socks4Message(cmd, localAddress, localPort);
-
 		}
 		response.write(out);
-		startPipe(s);
+		replied = true;
 	}
 
 	private void onBind(final ProxyMessage msg) throws IOException {
@@ -412,14 +746,14 @@ public class ProxyServer implements Runnable {
 		}
 		response.write(out);
 
+		// Make timeout infinit, until accepted.
+		unwatchIdle();
 		mode = ACCEPT_MODE;
 
 		pipe_thread1 = Thread.currentThread();
-		pipe_thread2 = new Thread(this);
+		pipe_thread2 = newThread(this);
 		pipe_thread2.start();
 
-		// Make timeout infinit.
-		sock.setSoTimeout(0);
 		int eof = 0;
 
 		try {
@@ -453,10 +787,11 @@ public class ProxyServer implements Runnable {
 		// remote socket. It does not make any difference.
 
 		pipe(in, remote_out);
+		drainRemote();
 	}
 
 	private void onUDP(final ProxyMessage msg) throws IOException {
-		if (msg.ip.getHostAddress().equals("0.0.0.0")) {
+		if (msg.ip.isAnyLocalAddress()) {
 			msg.ip = sock.getInetAddress();
 		}
 		debug("Creating UDP relay server for {}:{}", msg.ip, msg.port);
@@ -473,8 +808,8 @@ public class ProxyServer implements Runnable {
 
 		relayServer.start();
 
-		// Make timeout infinit.
-		sock.setSoTimeout(0);
+		// Make timeout infinit, the relay times out on its own.
+		unwatchIdle();
 		try {
 			while (in.read() >= 0) {
 				/* do nothing */;
@@ -487,6 +822,17 @@ public class ProxyServer implements Runnable {
 	// Private methods
 	// ////////////////
 
+	private static synchronized void resetUpstreamPool() {
+		if (upstreamPool != null) {
+			upstreamPool.close();
+			upstreamPool = null;
+		}
+		if ((proxy != null) && (upstreamPoolSize > 0)) {
+			upstreamPool = new UpstreamPool(proxy, upstreamPoolSize,
+					upstreamIdleTimeout);
+		}
+	}
+
 	private void doAccept() throws IOException {
 		Socket s = null;
 		final long startTime = System.currentTimeMillis();
@@ -523,7 +869,7 @@ public class ProxyServer implements Runnable {
 		remote_out = s.getOutputStream();
 
 		// Set timeout
-		remote_sock.setSoTimeout(iddleTimeout);
+		watchIdle();
 
 		final InetAddress inetAddress = s.getInetAddress();
 		final int port = s.getPort();
@@ -571,14 +917,52 @@ public class ProxyServer implements Runnable {
 			remote_in = s.getInputStream();
 			remote_out = s.getOutputStream();
 			pipe_thread1 = Thread.currentThread();
-			pipe_thread2 = new Thread(this);
+			pipe_thread2 = newThread(this);
 			pipe_thread2.start();
 			pipe(in, remote_out);
+			drainRemote();
 		} catch (final IOException ioe) {
 		}
 	}
 
+	/**
+	 * Called when a direction of the relay reached end of stream. Passes it
+	 * on by shutting down the output of s, unless the other direction ended
+	 * too.
+	 *
+	 * @return Wether the other direction is still relaying and the session
+	 *         must be kept open.
+	 */
+	private synchronized boolean halfClose(final Socket s) {
+		if ((--openDirections == 0) || (mode == ABORT_MODE)) {
+			return false;
+		}
+		try {
+			s.shutdownOutput();
+		} catch (final IOException ioe) {
+			debug("Unable to half close", ioe);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Called by the session thread once the client sent end of stream,
+	 * waits for the remote host to finish sending, e.g. the response to a
+	 * request of a client which shut down its output right after it.
+	 */
+	private void drainRemote() {
+		if (halfClose(remote_sock)) {
+			try {
+				pipe_thread2.join();
+			} catch (final InterruptedException ie) {
+				// Aborted.
+			}
+		}
+	}
+
 	private void sendErrorMessage(final int error_code) {
+		metrics.error(error_code);
 		ProxyMessage err_msg;
 		if (msg instanceof Socks4Message) {
 			err_msg = new Socks4Message(Socks4Message.REPLY_REJECTED);
@@ -596,6 +980,7 @@ public class ProxyServer implements Runnable {
 			return;
 		}
 		mode = ABORT_MODE;
+		unwatchIdle();
 		try {
 			debug("Aborting operation");
 			if (remote_sock != null) {
@@ -620,6 +1005,29 @@ public class ProxyServer implements Runnable {
 		}
 	}
 
+	/**
+	 * Aborts the session once it was idle for iddleTimeout, on the thread of
+	 * the shared IdleTimer. The sockets themselves have no timeout.
+	 */
+	private synchronized void watchIdle() {
+		if ((iddleTimeout == 0) || (idle != null) || (mode == ABORT_MODE)) {
+			return;
+		}
+		idle = IdleTimer.shared().watch(iddleTimeout, new Runnable() {
+			public void run() {
+				debug("Session timed out");
+				abort();
+			}
+		});
+	}
+
+	private synchronized void unwatchIdle() {
+		if (idle != null) {
+			IdleTimer.shared().cancel(idle);
+			idle = null;
+		}
+	}
+
 	static final void log(final ProxyMessage msg) {
 		debug("Request version: {}, Command: ", msg.version,
 				command2String(msg.command));
@@ -628,32 +1036,34 @@ public class ProxyServer implements Runnable {
 		debug("IP:" + msg.ip + ", Port:" + msg.port + user);
 	}
 
-	private void pipe(final InputStream in, final OutputStream out)
+	void pipe(final InputStream in, final OutputStream out)
 			throws IOException {
-		lastReadTime = System.currentTimeMillis();
-		final byte[] buf = new byte[BUF_SIZE];
+		final boolean toRemote = out == remote_out;
+		// Idle sessions are aborted by the IdleTimer, which closes the sockets.
+		final IdleTimer.Entry idle = this.idle;
+		// Buffers are recycled across sessions instead of allocated per pipe.
+		final ByteBuffer lease = pipeBuffers.lease();
+		final byte[] buf = lease.array();
 		int len = 0;
-		while (len >= 0) {
-			try {
+		try {
+			while ((len = in.read(buf)) >= 0) {
+				if (idle != null) {
+					idle.touch();
+				}
 				if (len != 0) {
 					out.write(buf, 0, len);
 					out.flush();
+					if (toRemote) {
+						bytesToRemote += len;
+						metrics.toRemote(len);
+					} else {
+						bytesToClient += len;
+						metrics.toClient(len);
+					}
 				}
-				len = in.read(buf);
-				lastReadTime = System.currentTimeMillis();
-			} catch (final InterruptedIOException iioe) {
-				if (iddleTimeout == 0) {
-					return;// Other thread interrupted us.
-				}
-				final long timeSinceRead = System.currentTimeMillis()
-						- lastReadTime;
-
-				if (timeSinceRead >= iddleTimeout - 1000) {
-					return;
-				}
-				len = 0;
-
 			}
+		} finally {
+			pipeBuffers.release(lease);
 		}
 	}
 
@@ -1,11 +1,11 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 /**
  * Datagram socket to interract through the firewall.<BR>
@@ -40,6 +40,12 @@ public class Socks5DatagramSocket extends DatagramSocket {
 	Socks5Proxy proxy;
 	private boolean server_mode = false;
 	UDPEncapsulation encapsulation;
+
+	/** Header and payload of the datagram being sent, reused. */
+	private byte[] sendBuf = new byte[0];
+	private final DatagramPacket sendPacket = new DatagramPacket(sendBuf, 0);
+	/** Header of the datagram being received, reused. */
+	private final SocksRequest header = new SocksRequest();
 	
 	/**
 	 * Construct Datagram socket for communication over SOCKS5 proxy server.
@@ -162,20 +168,7 @@ public class Socks5DatagramSocket extends DatagramSocket {
 			return;
 		}
 
-		final byte[] head = formHeader(dp.getAddress(), dp.getPort());
-		byte[] buf = new byte[head.length + dp.getLength()];
-		final byte[] data = dp.getData();
-
-		// Merge head and data
-		System.arraycopy(head, 0, buf, 0, head.length);
-		// System.arraycopy(data,dp.getOffset(),buf,head.length,dp.getLength());
-		System.arraycopy(data, 0, buf, head.length, dp.getLength());
-
-		if (encapsulation != null) {
-			buf = encapsulation.udpEncapsulate(buf, true);
-		}
-
-		super.send(new DatagramPacket(buf, buf.length, relayIP, relayPort));
+		sendToRelay(dp, dp.getAddress(), null);
 	}
 
 	/**
@@ -208,19 +201,7 @@ public class Socks5DatagramSocket extends DatagramSocket {
 			dp.setAddress(InetAddress.getByName(host));
 		}
 
-		final byte[] head = formHeader(host, dp.getPort());
-		byte[] buf = new byte[head.length + dp.getLength()];
-		final byte[] data = dp.getData();
-		// Merge head and data
-		System.arraycopy(head, 0, buf, 0, head.length);
-		// System.arraycopy(data,dp.getOffset(),buf,head.length,dp.getLength());
-		System.arraycopy(data, 0, buf, head.length, dp.getLength());
-
-		if (encapsulation != null) {
-			buf = encapsulation.udpEncapsulate(buf, true);
-		}
-
-		super.send(new DatagramPacket(buf, buf.length, relayIP, relayPort));
+		sendToRelay(dp, null, host);
 	}
 
 	/**
@@ -228,6 +209,9 @@ public class Socks5DatagramSocket extends DatagramSocket {
 	 * it is processed and address and port of the packet are set to the address
 	 * and port of sending host.<BR>
 	 * If the packet arrived from anywhere else it is not changed.<br>
+	 * The header is not copied out of the datagram, instead the offset of the
+	 * packet is moved past it, so the data starts at dp.getOffset(). Reset the
+	 * packet with setData before reusing it for another receive.<br>
 	 * <B> NOTE: </B> DatagramPacket size should be at least 10 bytes bigger
 	 * than the largest packet you expect (this is for IPV4 addresses). For
 	 * hostnames and IPV6 it is even more.
@@ -278,31 +262,32 @@ public class Socks5DatagramSocket extends DatagramSocket {
 			// If the datagram is not from the relay server, return it it as is.
 		}
 
-		byte[] data;
-		data = dp.getData();
+		byte[] data = dp.getData();
+		int offset = dp.getOffset();
+		int length = dp.getLength();
 
 		if (encapsulation != null) {
-			data = encapsulation.udpEncapsulate(data, false);
+			final byte[] raw = new byte[length];
+			System.arraycopy(data, offset, raw, 0, length);
+			data = encapsulation.udpEncapsulate(raw, false);
+			offset = 0;
+			length = data.length;
 		}
 
-		// FIXME: What is this?
-		final int offset = 0; // Java 1.1
-		// int offset = dp.getOffset(); //Java 1.2
-
-		final ByteArrayInputStream bIn = new ByteArrayInputStream(data, offset,
-				dp.getLength());
-
-		final ProxyMessage msg = new Socks5Message(bIn);
-		dp.setPort(msg.port);
-		dp.setAddress(msg.getInetAddress());
-
-		// what wasn't read by the Message is the data
-		final int data_length = bIn.available();
-		// Shift data to the left
-		System.arraycopy(data, offset + dp.getLength() - data_length, data,
-				offset, data_length);
-
-		dp.setLength(data_length);
+		final ByteBuffer buf = ByteBuffer.wrap(data, offset, length);
+		InetAddress ip;
+		int port;
+		synchronized (header) {
+			header.parseDatagram(buf);
+			ip = header.ip;
+			port = header.port;
+			if (ip == null) {
+				ip = HostResolver.shared.resolve(header.host);
+			}
+		}
+		dp.setData(data, buf.position(), buf.remaining());
+		dp.setPort(port);
+		dp.setAddress(ip);
 	}
 
 	/**
@@ -397,16 +382,49 @@ public class Socks5DatagramSocket extends DatagramSocket {
 	// PRIVATE METHODS
 	// ////////////////
 
-	private byte[] formHeader(InetAddress ip, int port) {
-		final Socks5Message request = new Socks5Message(0, ip, port);
-		request.data[0] = 0;
-		return request.data;
-	}
+	/**
+	 * Sends the data of dp to the relay, behind a header for either ip or
+	 * host. Header and data are put into a buffer kept for reuse, so no
+	 * arrays or packets are allocated per datagram.
+	 */
+	private void sendToRelay(DatagramPacket dp, InetAddress ip, String host)
+			throws IOException {
+		final byte[] name = host == null ? null : host.getBytes();
+		final int headLength = ip != null ? SocksRequest
+				.datagramHeaderLength(ip) : 4 + 1 + name.length + 2;
+		final int length = headLength + dp.getLength();
+
+		synchronized (sendPacket) {
+			if (sendBuf.length < length) {
+				sendBuf = new byte[length];
+			}
+			final ByteBuffer buf = ByteBuffer.wrap(sendBuf);
+			if (ip != null) {
+				SocksRequest.writeDatagramHeader(buf, ip, dp.getPort());
+			} else {
+				buf.putShort((short) 0);
+				buf.put((byte) 0);
+				buf.put((byte) Socks5Message.SOCKS_ATYP_DOMAINNAME);
+				buf.put((byte) name.length);
+				buf.put(name);
+				buf.putShort((short) dp.getPort());
+			}
+			buf.put(dp.getData(), dp.getOffset(), dp.getLength());
+
+			if (encapsulation != null) {
+				final byte[] raw = new byte[length];
+				System.arraycopy(sendBuf, 0, raw, 0, length);
+				final byte[] enc = encapsulation.udpEncapsulate(raw, true);
+				super.send(new DatagramPacket(enc, enc.length, relayIP,
+						relayPort));
+				return;
+			}
 
-	private byte[] formHeader(String host, int port) {
-		final Socks5Message request = new Socks5Message(0, host, port);
-		request.data[0] = 0;
-		return request.data;
+			sendPacket.setData(sendBuf, 0, length);
+			sendPacket.setAddress(relayIP);
+			sendPacket.setPort(relayPort);
+			super.send(sendPacket);
+		}
 	}
 
 	/*
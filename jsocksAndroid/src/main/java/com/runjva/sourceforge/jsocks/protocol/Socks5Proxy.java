@@ -1,5 +1,6 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -21,6 +22,7 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 	private int selectedMethod;
 
 	boolean resolveAddrLocally = true;
+	boolean pipelining = false;
 	UDPEncapsulation udp_encapsulation = null;
 
 	// Public Constructors
@@ -119,6 +121,38 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 		return resolveAddrLocally;
 	}
 
+	/**
+	 * Sets wether the greeting, authentication and CONNECT request should be
+	 * sent to the proxy in one go, without waiting for the replies in
+	 * between. This saves one round trip per connection, two with
+	 * user/password authentication, which adds up for chains of remote
+	 * proxies.
+	 * <p>
+	 * Only used when exactly one authentication method is set, and it is
+	 * either none or UserPasswordAuthentication, as other methods need the
+	 * reply of the proxy to continue. The replies are still checked in order,
+	 * a proxy choosing another method fails the connection. Default is false.
+	 * 
+	 * @param pipelining
+	 *            Wether to pipeline the handshake.
+	 * @return Previous setting.
+	 */
+	public boolean setPipelining(boolean pipelining) {
+		final boolean old = this.pipelining;
+		this.pipelining = pipelining;
+		return old;
+	}
+
+	/**
+	 * Get current setting on pipelining of the handshake.
+	 * 
+	 * @return Wether the handshake is pipelined.
+	 * @see Socks5Proxy#setPipelining(boolean)
+	 */
+	public boolean isPipelining() {
+		return pipelining;
+	}
+
 	/**
 	 * Adds another authentication method.
 	 * 
@@ -168,6 +202,7 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 
 		newProxy.directHosts = (InetRange) directHosts.clone();
 		newProxy.resolveAddrLocally = resolveAddrLocally;
+		newProxy.pipelining = pipelining;
 		newProxy.chainProxy = chainProxy;
 		return newProxy;
 	}
@@ -185,9 +220,26 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 		copy.directHosts = this.directHosts;
 		copy.chainProxy = this.chainProxy;
 		copy.resolveAddrLocally = this.resolveAddrLocally;
+		copy.pipelining = this.pipelining;
 		return copy;
 	}
 
+	protected ProxyMessage connect(InetAddress ip, int port)
+			throws SocksException {
+		if (pipelinedMethod() < 0) {
+			return super.connect(ip, port);
+		}
+		return pipelinedConnect(formMessage(SOCKS_CMD_CONNECT, ip, port));
+	}
+
+	protected ProxyMessage connect(String host, int port)
+			throws UnknownHostException, SocksException {
+		if (pipelinedMethod() < 0) {
+			return super.connect(host, port);
+		}
+		return pipelinedConnect(formMessage(SOCKS_CMD_CONNECT, host, port));
+	}
+
 	/**
     *
     *
@@ -292,4 +344,79 @@ public class Socks5Proxy extends SocksProxyBase implements Cloneable {
 		return new Socks5Message(in);
 	}
 
+	// Private Methods
+	// =================
+
+	/**
+	 * Method to use for a pipelined handshake, or -1 if the handshake can not
+	 * or should not be pipelined.
+	 */
+	private int pipelinedMethod() {
+		if (!pipelining || (authMethods.size() != 1)) {
+			return -1;
+		}
+		final int methodId = authMethods.keys().nextElement().intValue();
+		final Authentication auth = authMethods.get(methodId);
+		if (methodId == 0) {
+			return methodId;
+		}
+		if ((methodId == UserPasswordAuthentication.METHOD_ID)
+				&& (auth instanceof UserPasswordAuthentication)) {
+			return methodId;
+		}
+		return -1;
+	}
+
+	/**
+	 * Sends greeting, authentication and request in a single write, then
+	 * reads and checks the replies in order.
+	 */
+	private ProxyMessage pipelinedConnect(ProxyMessage request)
+			throws SocksException {
+		final int methodId = pipelinedMethod();
+		try {
+			super.startSession(); // Only connects.
+
+			final ByteArrayOutputStream flight = new ByteArrayOutputStream();
+			flight.write(version);
+			flight.write(1);
+			flight.write(methodId);
+			if (methodId == UserPasswordAuthentication.METHOD_ID) {
+				flight.write(((UserPasswordAuthentication) authMethods
+						.get(methodId)).request);
+			}
+			request.write(flight);
+			out.write(flight.toByteArray());
+			out.flush();
+
+			final int versionNumber = in.read();
+			selectedMethod = in.read();
+			if ((versionNumber < 0) || (selectedMethod < 0)) {
+				final String s = "Connection to proxy lost.";
+				throw new SocksException(SOCKS_PROXY_IO_ERROR, s);
+			}
+			if (selectedMethod == 0xFF) {
+				throw new SocksException(SOCKS_AUTH_NOT_SUPPORTED);
+			}
+			if (selectedMethod != methodId) {
+				final String s = "Proxy selected another method: "
+						+ selectedMethod;
+				throw new SocksException(SOCKS_JUST_ERROR, s);
+			}
+			if (methodId == UserPasswordAuthentication.METHOD_ID) {
+				in.read(); // Version of the sub negotiation.
+				if (in.read() != 0) {
+					throw new SocksException(SOCKS_AUTH_FAILURE);
+				}
+			}
+			return formMessage(in);
+		} catch (final SocksException s_ex) {
+			endSession();
+			throw s_ex;
+		} catch (final IOException io_ex) {
+			endSession();
+			throw new SocksException(SOCKS_PROXY_IO_ERROR, io_ex);
+		}
+	}
+
 }
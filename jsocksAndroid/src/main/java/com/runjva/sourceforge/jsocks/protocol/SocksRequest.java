@@ -0,0 +1,400 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Mutable SOCKS4, SOCKS4a or SOCKS5 request, parsed directly from a
+ * ByteBuffer.
+ * <p>
+ * Unlike Socks4Message and Socks5Message no streams or intermediate arrays
+ * are involved, and instances are meant to be reused: parse overwrites all
+ * fields. The only objects created per request are the InetAddress of an IP
+ * request, which is needed to connect anyway, the host of a domain name
+ * request and the user of a SOCKS4 request, if not empty. Replies are encoded
+ * straight into a caller supplied buffer with writeReply.
+ * <p>
+ * The host field is only set for domain name requests, ip only for IP
+ * requests.
+ */
+final class SocksRequest extends ProxyMessage {
+
+	/** Address type, one of the Socks5Message.SOCKS_ATYP constants. */
+	int addrType;
+
+	/** Longest possible request: SOCKS4a with maximal user and host. */
+	static final int MAX_LENGTH = 8 + 256 + 256;
+	static final int MAX_NAME_LENGTH = 255;
+
+	/**
+	 * Creates an empty request.
+	 */
+	SocksRequest() {
+	}
+
+	/**
+	 * Resets all fields.
+	 */
+	void clear() {
+		version = command = port = addrType = 0;
+		ip = null;
+		host = null;
+		user = null;
+	}
+
+	/**
+	 * Parses the request at the position of the buffer, which must be in read
+	 * mode.
+	 *
+	 * @return true if a complete request was parsed, the position of the
+	 *         buffer is then just past it. false if not all of the request has
+	 *         arrived yet, the buffer is left as is.
+	 * @throws SocksException
+	 *             If the request is malformed.
+	 */
+	boolean parse(final ByteBuffer buf) throws SocksException {
+		if (!buf.hasRemaining()) {
+			return false;
+		}
+		switch (buf.get(buf.position())) {
+		case 5:
+			return parse5(buf);
+		case 4:
+			return parse4(buf);
+		default:
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+	}
+
+	/**
+	 * Encodes a server reply to a request of the given version.
+	 *
+	 * @param out
+	 *            Buffer to put the reply into, in write mode.
+	 * @param version
+	 *            SOCKS version of the request.
+	 * @param code
+	 *            SOCKS5 reply code, for SOCKS4 any failure becomes
+	 *            REPLY_REJECTED.
+	 * @param bound
+	 *            Address to report, null for 0.0.0.0.
+	 * @param port
+	 *            Port to report.
+	 */
+	static void writeReply(final ByteBuffer out, final int version,
+			final int code, final InetAddress bound, final int port) {
+		final byte[] addr = bound == null ? null : bound.getAddress();
+		if (version == 4) {
+			out.put((byte) 0);
+			out.put((byte) (code == SocksProxyBase.SOCKS_SUCCESS ? Socks4Message.REPLY_OK
+					: Socks4Message.REPLY_REJECTED));
+			out.putShort((short) port);
+			if ((addr != null) && (addr.length == 4)) {
+				out.put(addr);
+			} else {
+				out.putInt(0);
+			}
+			return;
+		}
+		out.put((byte) Socks5Message.SOCKS_VERSION);
+		out.put((byte) code);
+		out.put((byte) 0);
+		if ((addr != null) && (addr.length == 16)) {
+			out.put((byte) Socks5Message.SOCKS_ATYP_IPV6);
+			out.put(addr);
+		} else {
+			out.put((byte) Socks5Message.SOCKS_ATYP_IPV4);
+			if (addr != null) {
+				out.put(addr);
+			} else {
+				out.putInt(0);
+			}
+		}
+		out.putShort((short) port);
+	}
+
+	/**
+	 * Encodes this request, as a client would send it.
+	 *
+	 * @param out
+	 *            Buffer to put the request into, in write mode.
+	 */
+	void writeRequest(final ByteBuffer out) {
+		if (version == 4) {
+			out.put((byte) 4);
+			out.put((byte) command);
+			out.putShort((short) port);
+			if (ip != null) {
+				out.put(ip.getAddress());
+			} else {
+				out.putInt(1); // SOCKS4a, 0.0.0.1
+			}
+			if (user != null) {
+				out.put(user.getBytes());
+			}
+			out.put((byte) 0);
+			if (ip == null) {
+				out.put(host.getBytes());
+				out.put((byte) 0);
+			}
+			return;
+		}
+		out.put((byte) Socks5Message.SOCKS_VERSION);
+		out.put((byte) command);
+		out.put((byte) 0);
+		if (ip != null) {
+			final byte[] addr = ip.getAddress();
+			out.put((byte) (addr.length == 4 ? Socks5Message.SOCKS_ATYP_IPV4
+					: Socks5Message.SOCKS_ATYP_IPV6));
+			out.put(addr);
+		} else {
+			final byte[] name = host.getBytes();
+			out.put((byte) Socks5Message.SOCKS_ATYP_DOMAINNAME);
+			out.put((byte) name.length);
+			out.put(name);
+		}
+		out.putShort((short) port);
+	}
+
+	/**
+	 * Parses the header of a SOCKS5 UDP datagram at the position of the
+	 * buffer, which must be in read mode. On return the position is at the
+	 * start of the payload; host, ip and port hold the destination or source.
+	 *
+	 * @throws SocksException
+	 *             If the header is malformed or truncated, or the datagram is a
+	 *             fragment, which is not supported.
+	 */
+	void parseDatagram(final ByteBuffer buf) throws SocksException {
+		final int start = buf.position();
+		if (buf.remaining() < 5) {
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+		if (buf.get(start + 2) != 0) {
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE,
+					"Fragmented datagram");
+		}
+		final int type = buf.get(start + 3);
+		final int length = length5(buf, start, type);
+		if (buf.remaining() < length) {
+			throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+		}
+
+		clear();
+		version = 5;
+		addrType = type;
+		port = buf.getShort(start + length - 2) & 0xFFFF;
+		if (type == Socks5Message.SOCKS_ATYP_DOMAINNAME) {
+			host = string(buf, start + 5, length - 7);
+		} else {
+			ip = address(buf, start + 4, length - 6);
+		}
+		buf.position(start + length);
+	}
+
+	/**
+	 * Length of the SOCKS5 UDP header for an address.
+	 */
+	static int datagramHeaderLength(final InetAddress ip) {
+		return 4 + (ip instanceof Inet4Address ? 4
+				: Socks5Message.SOCKS_IPV6_LENGTH) + 2;
+	}
+
+	/**
+	 * Encodes the header of a SOCKS5 UDP datagram.
+	 *
+	 * @param out
+	 *            Buffer to put the header into, in write mode.
+	 * @param ip
+	 *            Destination or source address of the datagram.
+	 * @param port
+	 *            Destination or source port of the datagram.
+	 */
+	static void writeDatagramHeader(final ByteBuffer out, final InetAddress ip,
+			final int port) {
+		final byte[] addr = ip.getAddress();
+		out.putShort((short) 0);
+		out.put((byte) 0);
+		out.put((byte) (addr.length == 4 ? Socks5Message.SOCKS_ATYP_IPV4
+				: Socks5Message.SOCKS_ATYP_IPV6));
+		out.put(addr);
+		out.putShort((short) port);
+	}
+
+	// ProxyMessage methods, for use with blocking streams
+	// ///////////////////////////////////////////////////
+
+	public void read(final InputStream in) throws SocksException, IOException {
+		read(in, false);
+	}
+
+	/**
+	 * Reads a client request from the stream. Only client requests are
+	 * understood, clientMode must be false.
+	 */
+	public void read(final InputStream in, final boolean clientMode)
+			throws SocksException, IOException {
+		if (clientMode) {
+			throw new SocksException(SocksProxyBase.SOCKS_JUST_ERROR,
+					"Replies are not parsed");
+		}
+		final ByteBuffer buf = ByteBuffer.allocate(MAX_LENGTH);
+		while (true) {
+			final int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			buf.put((byte) b);
+			buf.flip();
+			if (parse(buf)) {
+				return;
+			}
+			buf.position(buf.limit());
+			buf.limit(buf.capacity());
+			if (!buf.hasRemaining()) {
+				throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+			}
+		}
+	}
+
+	public void write(final OutputStream out) throws SocksException,
+			IOException {
+		final ByteBuffer buf = ByteBuffer.allocate(MAX_LENGTH);
+		writeRequest(buf);
+		out.write(buf.array(), 0, buf.position());
+	}
+
+	// Private methods
+	// ///////////////
+
+	private boolean parse5(final ByteBuffer buf) throws SocksException {
+		final int start = buf.position();
+		if (buf.remaining() < 5) {
+			return false;
+		}
+		final int type = buf.get(start + 3);
+		final int length = length5(buf, start, type);
+		if (buf.remaining() < length) {
+			return false;
+		}
+
+		clear();
+		version = 5;
+		command = buf.get(start + 1) & 0xFF;
+		addrType = type;
+		port = buf.getShort(start + length - 2) & 0xFFFF;
+		if (type == Socks5Message.SOCKS_ATYP_DOMAINNAME) {
+			host = string(buf, start + 5, length - 7);
+		} else {
+			ip = address(buf, start + 4, length - 6);
+		}
+		buf.position(start + length);
+		return true;
+	}
+
+	private boolean parse4(final ByteBuffer buf) throws SocksException {
+		final int start = buf.position();
+		if (buf.remaining() < 9) {
+			return false;
+		}
+		final int userEnd = zero(buf, start + 8);
+		if (userEnd < 0) {
+			return false;
+		}
+		// 0.0.0.x with x != 0 means SOCKS4a, the host name follows the user.
+		final boolean socks4a = (buf.getShort(start + 4) == 0)
+				&& (buf.get(start + 6) == 0) && (buf.get(start + 7) != 0);
+		int end = userEnd;
+		if (socks4a) {
+			end = zero(buf, userEnd + 1);
+			if (end < 0) {
+				return false;
+			}
+		}
+
+		clear();
+		version = 4;
+		command = buf.get(start + 1) & 0xFF;
+		port = buf.getShort(start + 2) & 0xFFFF;
+		if (userEnd > start + 8) {
+			user = string(buf, start + 8, userEnd - start - 8);
+		} else {
+			user = "";
+		}
+		if (socks4a) {
+			addrType = Socks5Message.SOCKS_ATYP_DOMAINNAME;
+			host = string(buf, userEnd + 1, end - userEnd - 1);
+		} else {
+			addrType = Socks5Message.SOCKS_ATYP_IPV4;
+			ip = address(buf, start + 4, 4);
+		}
+		buf.position(end + 1);
+		return true;
+	}
+
+	/**
+	 * Length of a SOCKS5 request or UDP header starting at start, both have
+	 * the address at the same offset.
+	 */
+	private static int length5(final ByteBuffer buf, final int start,
+			final int type) throws SocksException {
+		switch (type) {
+		case Socks5Message.SOCKS_ATYP_IPV4:
+			return 4 + 4 + 2;
+		case Socks5Message.SOCKS_ATYP_IPV6:
+			return 4 + Socks5Message.SOCKS_IPV6_LENGTH + 2;
+		case Socks5Message.SOCKS_ATYP_DOMAINNAME:
+			return 4 + 1 + (buf.get(start + 4) & 0xFF) + 2;
+		default:
+			throw new SocksException(SocksProxyBase.SOCKS_ADDR_NOT_SUPPORTED);
+		}
+	}
+
+	/**
+	 * Index of the zero terminating a string at from, or -1 if it has not
+	 * arrived yet.
+	 */
+	private static int zero(final ByteBuffer buf, final int from)
+			throws SocksException {
+		for (int i = from; i < buf.limit(); ++i) {
+			if (buf.get(i) == 0) {
+				return i;
+			}
+			if (i - from >= MAX_NAME_LENGTH) {
+				throw new SocksException(SocksProxyBase.SOCKS_FAILURE);
+			}
+		}
+		return -1;
+	}
+
+	private static String string(final ByteBuffer buf, final int from,
+			final int length) {
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			bytes[i] = buf.get(from + i);
+		}
+		return new String(bytes);
+	}
+
+	/**
+	 * Address from raw bytes, never does a lookup.
+	 */
+	private static InetAddress address(final ByteBuffer buf, final int from,
+			final int length) throws SocksException {
+		final byte[] addr = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			addr[i] = buf.get(from + i);
+		}
+		try {
+			return InetAddress.getByAddress(addr);
+		} catch (final UnknownHostException uhe) {
+			throw new SocksException(SocksProxyBase.SOCKS_ADDR_NOT_SUPPORTED);
+		}
+	}
+}
@@ -165,6 +165,26 @@ public class SocksSocket extends Socket {
 		}
 	}
 
+	/**
+	 * Connects to given ip and port on a warm session of the pool, used by
+	 * ProxyServer when chaining. Unlike the other constructors does not look
+	 * up the host name of ip.
+	 */
+	SocksSocket(UpstreamPool pool, InetAddress ip, int port)
+			throws SocksException {
+		this.remoteIP = ip;
+		this.remotePort = port;
+		this.remoteHost = ip.getHostAddress();
+		if (pool.proxy.isDirect(remoteIP)) {
+			this.proxy = pool.proxy.copy();
+			doDirect();
+		} else {
+			final ProxyMessage[] reply = new ProxyMessage[1];
+			this.proxy = pool.connect(ip, port, reply);
+			processReply(reply[0]);
+		}
+	}
+
 	/**
 	 * These 2 constructors are used by the SocksServerSocket. This socket
 	 * simply overrides remoteHost, remotePort
@@ -328,6 +348,20 @@ public class SocksSocket extends Socket {
 		return proxy.proxySocket.getTcpNoDelay();
 	}
 
+	/**
+	 * Same as socket, the end of stream is passed on by the proxy.
+	 */
+	public void shutdownOutput() throws IOException {
+		proxy.proxySocket.shutdownOutput();
+	}
+
+	/**
+	 * Same as socket.
+	 */
+	public void shutdownInput() throws IOException {
+		proxy.proxySocket.shutdownInput();
+	}
+
 	/**
 	 * Get string representation of the socket.
 	 */
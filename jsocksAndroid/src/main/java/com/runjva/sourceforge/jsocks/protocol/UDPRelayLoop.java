@@ -0,0 +1,355 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
+
+/**
+ * Selector loop relaying the datagrams of all UDP associations of
+ * UDPRelayServer on a single thread.
+ * <p>
+ * Each association registers its client and remote DatagramChannel with the
+ * shared selector. The loop owns a single DatagramBatch and one DatagramPacket
+ * for the authenticator, instead of two threads and two buffers per
+ * association. On every wakeup all datagrams ready on a channel, up to
+ * UDPRelayServer.batchSize, are drained into the batch, checked by the
+ * authenticator and then sent. Headers are parsed and written in place:
+ * datagrams from remote hosts are received behind enough room for the
+ * longest IP header, which is then put right in front of the payload.
+ * <p>
+ * Datagrams addressed to a host name whose address is not cached yet are
+ * handed to the resolver threads and sent from there.
+ * <p>
+ * A failing relay, be it closed by another thread or refused by the
+ * authenticator with an exception, is aborted on its own. Should the loop
+ * still die, its relays are aborted and the next relay starts a new loop.
+ */
+class UDPRelayLoop implements Runnable {
+
+	static final int SWEEP_INTERVAL = 1000;
+	static final int MAX_BATCH = 64;
+	/** Room for the longest header the relay writes, an IPv6 one. */
+	static final int HEADROOM = 4 + Socks5Message.SOCKS_IPV6_LENGTH + 2;
+
+	private static UDPRelayLoop shared = null;
+
+	final Selector selector;
+	final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	final Set<UDPRelayServer> relays = new HashSet<UDPRelayServer>();
+
+	/** Rebuilt when UDPRelayServer.datagramSize changes. */
+	private DatagramBatch batch;
+	private final DatagramPacket dp = new DatagramPacket(new byte[0], 0);
+	private final SocksRequest header = new SocksRequest();
+
+	UDPRelayLoop() throws IOException {
+		selector = Selector.open();
+		batch = new DatagramBatch(MAX_BATCH, HEADROOM,
+				UDPRelayServer.datagramSize);
+	}
+
+	/**
+	 * Loop shared by all relays, started on first use.
+	 */
+	static synchronized UDPRelayLoop shared() throws IOException {
+		if (shared == null) {
+			shared = new UDPRelayLoop();
+			final Thread t = ProxyServer.newThread(shared);
+			t.setName("UDPRelayLoop");
+			t.setDaemon(true);
+			t.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Starts relaying the channels of the relay. The channels must be bound
+	 * and in non blocking mode.
+	 */
+	void register(final UDPRelayServer relay) {
+		execute(new Runnable() {
+			public void run() {
+				try {
+					relay.client_channel.register(selector,
+							SelectionKey.OP_READ, relay);
+					relay.remote_channel.register(selector,
+							SelectionKey.OP_READ, relay);
+					relays.add(relay);
+				} catch (final IOException ioe) {
+					ProxyServer.debug("Unable to register UDP relay", ioe);
+					relay.abort();
+				}
+			}
+		});
+	}
+
+	void execute(final Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public void run() {
+		try {
+			loop();
+		} finally {
+			synchronized (UDPRelayLoop.class) {
+				if (shared == this) {
+					shared = null;
+				}
+			}
+			// Registers the relays handed over meanwhile, to abort them too.
+			runTasks();
+			for (final SelectionKey key : selector.keys()) {
+				((UDPRelayServer) key.attachment()).abort();
+			}
+			try {
+				selector.close();
+			} catch (final IOException ioe) {
+			}
+		}
+	}
+
+	// Private methods
+	// ///////////////
+
+	private void loop() {
+		long lastSweep = System.currentTimeMillis();
+		while (true) {
+			try {
+				selector.select(SWEEP_INTERVAL);
+			} catch (final IOException ioe) {
+				ProxyServer.debug("UDP relay selector failed", ioe);
+				continue;
+			}
+
+			runTasks();
+
+			final int datagramSize = UDPRelayServer.datagramSize;
+			if (batch.maxDatagram != datagramSize) {
+				batch = new DatagramBatch(MAX_BATCH, HEADROOM, datagramSize);
+			}
+
+			final Iterator<SelectionKey> keys = selector.selectedKeys()
+					.iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				final UDPRelayServer relay = (UDPRelayServer) key.attachment();
+				try {
+					if (!key.isValid() || !key.isReadable()) {
+						continue;
+					}
+					if (key.channel() == relay.client_channel) {
+						fromClient(relay);
+					} else {
+						fromRemote(relay);
+					}
+				} catch (final IOException ioe) {
+					ProxyServer.debug("UDP relay failed", ioe);
+					relay.abort();
+				} catch (final RuntimeException re) {
+					// E.g. CancelledKeyException if the relay was stopped
+					// meanwhile, or thrown by the authenticator.
+					ProxyServer.debug("UDP relay failed", re);
+					relay.abort();
+				}
+			}
+
+			final long now = System.currentTimeMillis();
+			if (now - lastSweep >= SWEEP_INTERVAL) {
+				lastSweep = now;
+				sweep(now);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (final RuntimeException re) {
+				ProxyServer.debug("UDP relay task failed", re);
+			}
+		}
+	}
+
+	/**
+	 * Unwraps the datagrams of the client and sends them to their
+	 * destinations.
+	 */
+	private void fromClient(final UDPRelayServer relay) throws IOException {
+		final int n = batch.receive(relay.client_channel,
+				UDPRelayServer.batchSize);
+		if (n == 0) {
+			return;
+		}
+		relay.lastReadTime = System.currentTimeMillis();
+
+		for (int i = 0; i < n; i++) {
+			final InetSocketAddress from = batch.addresses[i];
+			batch.addresses[i] = null;
+			// Drop all datagrams not from the client.
+			if ((from.getPort() != relay.clientPort)
+					|| !from.getAddress().equals(relay.clientIP)) {
+				continue;
+			}
+			if (relay.encapsulation != null) {
+				final byte[] raw = new byte[batch.lengths[i]];
+				batch.packet(i).get(raw);
+				final byte[] plain = relay.encapsulation.udpEncapsulate(raw,
+						false);
+				batch.set(i, plain, 0, plain.length);
+			}
+			final ByteBuffer packet = batch.packet(i);
+			try {
+				header.parseDatagram(packet);
+			} catch (final SocksException se) {
+				continue; // Malformed or fragmented, drop it.
+			}
+			batch.set(i, batch.arrays[i], packet.position(),
+					packet.remaining());
+
+			InetAddress ip = header.ip;
+			if (ip == null) {
+				ip = HostResolver.shared.lookup(header.host);
+				if (ip == null) {
+					resolveAndSend(relay, header.host, header.port, packet);
+					continue;
+				}
+			}
+			batch.addresses[i] = new InetSocketAddress(ip, header.port);
+		}
+
+		check(relay, true);
+		for (int i = 0; i < n; i++) {
+			if (batch.addresses[i] != null) {
+				relay.remote_channel.send(batch.packet(i), batch.addresses[i]);
+			}
+		}
+	}
+
+	/**
+	 * Wraps the datagrams of remote hosts and sends them to the client.
+	 */
+	private void fromRemote(final UDPRelayServer relay) throws IOException {
+		final int n = batch.receive(relay.remote_channel,
+				UDPRelayServer.batchSize);
+		if (n == 0) {
+			return;
+		}
+		relay.lastReadTime = System.currentTimeMillis();
+
+		check(relay, false);
+		for (int i = 0; i < n; i++) {
+			final InetSocketAddress from = batch.addresses[i];
+			if (from == null) {
+				continue;
+			}
+			// Put the header into the headroom, right before the payload.
+			final int start = batch.offsets[i]
+					- SocksRequest.datagramHeaderLength(from.getAddress());
+			final ByteBuffer buf = batch.buf;
+			buf.limit(batch.offsets[i]);
+			buf.position(start);
+			SocksRequest.writeDatagramHeader(buf, from.getAddress(),
+					from.getPort());
+			batch.set(i, batch.data, start, batch.offsets[i] + batch.lengths[i]
+					- start);
+
+			ByteBuffer packet = batch.packet(i);
+			if (relay.encapsulation != null) {
+				final byte[] raw = new byte[packet.remaining()];
+				packet.get(raw);
+				packet = ByteBuffer.wrap(relay.encapsulation.udpEncapsulate(
+						raw, true));
+			}
+			relay.client_channel.send(packet, relay.clientAddress);
+		}
+	}
+
+	/**
+	 * Runs the authenticator over the batch, dropping the datagrams it
+	 * refuses.
+	 */
+	private void check(final UDPRelayServer relay, final boolean out) {
+		for (int i = 0; i < batch.count; i++) {
+			final InetSocketAddress address = batch.addresses[i];
+			if (address == null) {
+				continue;
+			}
+			dp.setData(batch.arrays[i], batch.offsets[i], batch.lengths[i]);
+			dp.setAddress(address.getAddress());
+			dp.setPort(address.getPort());
+			if (!relay.auth.checkRequest(dp, out)) {
+				batch.addresses[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Resolves host on the resolver threads and sends a copy of the payload
+	 * from there, the channel may be used by several threads.
+	 */
+	private void resolveAndSend(final UDPRelayServer relay,
+			final String host, final int port, final ByteBuffer payload) {
+		final byte[] copy = new byte[payload.remaining()];
+		payload.get(copy);
+		final ServerAuthenticator auth = relay.auth;
+		HostResolver.shared.execute(new Runnable() {
+			public void run() {
+				try {
+					final InetAddress ip = HostResolver.shared.resolve(host);
+					final DatagramPacket packet = new DatagramPacket(copy,
+							copy.length, ip, port);
+					if (auth.checkRequest(packet, true)) {
+						relay.remote_channel.send(ByteBuffer.wrap(copy),
+								new InetSocketAddress(ip, port));
+					}
+				} catch (final UnknownHostException uhe) {
+					// Dropping datagram for unknown host.
+				} catch (final IOException ioe) {
+					relay.abort();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Forgets closed relays and aborts the ones idle for longer than the
+	 * timeout.
+	 */
+	private void sweep(final long now) {
+		final List<UDPRelayServer> expired = new ArrayList<UDPRelayServer>();
+		final Iterator<UDPRelayServer> it = relays.iterator();
+		while (it.hasNext()) {
+			final UDPRelayServer relay = it.next();
+			if (!relay.client_channel.isOpen()) {
+				it.remove();
+			} else if ((UDPRelayServer.iddleTimeout != 0)
+					&& (now - relay.lastReadTime >= UDPRelayServer.iddleTimeout)) {
+				expired.add(relay);
+			}
+		}
+		for (final UDPRelayServer relay : expired) {
+			ProxyServer.debug("UDP relay timed out");
+			relays.remove(relay);
+			relay.abort();
+		}
+	}
+}
@@ -1,38 +1,55 @@
 package com.runjva.sourceforge.jsocks.protocol;
 
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
 
 import com.runjva.sourceforge.jsocks.server.ServerAuthenticator;
 
 /**
  * UDP Relay server, used by ProxyServer to perform udp forwarding.
+ * <p>
+ * Datagrams are relayed by the UDPRelayLoop shared by all relay servers,
+ * unless they have to be forwarded through another proxy, in which case two
+ * threads are used per relay server.
  */
-class UDPRelayServer implements Runnable {
+class UDPRelayServer {
 
 	DatagramSocket client_sock;
 	DatagramSocket remote_sock;
 
+	DatagramChannel client_channel;
+	DatagramChannel remote_channel;
+
 	Socket controlConnection;
 
 	int relayPort;
 	InetAddress relayIP;
 
+	InetAddress clientIP;
+	int clientPort;
+	InetSocketAddress clientAddress;
+	UDPEncapsulation encapsulation;
+
 	Thread pipe_thread1, pipe_thread2;
 	Thread master_thread;
 
 	ServerAuthenticator auth;
 
-	long lastReadTime;
+	boolean running = false;
+	volatile long lastReadTime;
+	/** Watches the threaded relay, the relay loop sweeps its own relays. */
+	IdleTimer.Entry idle = null;
 	
 	static SocksProxyBase proxy = null;
 	static int datagramSize = 0xFFFF;// 64K, a bit more than max udp size
 	static int iddleTimeout = 180000;// 3 minutes
+	static int batchSize = UDPRelayLoop.MAX_BATCH;
 
 	/**
 	 * Constructs UDP relay server to communicate with client on given ip and
@@ -59,9 +76,18 @@ class UDPRelayServer implements Runnable {
 		this.master_thread = master_thread;
 		this.controlConnection = controlConnection;
 		this.auth = auth;
+		this.clientIP = clientIP;
+		this.clientPort = clientPort;
+		clientAddress = new InetSocketAddress(clientIP, clientPort);
+		encapsulation = auth.getUdpEncapsulation();
+
+		if (proxy == null) {
+			openChannels();
+			return;
+		}
 
-		client_sock = new Socks5DatagramSocket(true,
-				auth.getUdpEncapsulation(), clientIP, clientPort);
+		client_sock = new Socks5DatagramSocket(true, encapsulation, clientIP,
+				clientPort);
 
 		relayPort = client_sock.getLocalPort();
 		relayIP = client_sock.getLocalAddress();
@@ -70,11 +96,7 @@ class UDPRelayServer implements Runnable {
 			relayIP = InetAddress.getLocalHost();
 		}
 
-		if (proxy == null) {
-			remote_sock = new DatagramSocket();
-		} else {
-			remote_sock = new Socks5DatagramSocket(proxy, 0, null);
-		}
+		remote_sock = new Socks5DatagramSocket(proxy, 0, null);
 	}
 
 	// Public methods
@@ -99,6 +121,15 @@ class UDPRelayServer implements Runnable {
 		datagramSize = size;
 	}
 
+	/**
+	 * Sets the maximal number of datagrams relayed per wakeup of the relay
+	 * loop, between 1 and 64.<br>
+	 * Default is 64.
+	 */
+	static public void setBatchSize(int size) {
+		batchSize = Math.max(1, Math.min(size, UDPRelayLoop.MAX_BATCH));
+	}
+
 	/**
 	 * Port to which client should send datagram for association.
 	 */
@@ -114,20 +145,34 @@ class UDPRelayServer implements Runnable {
 	}
 
 	/**
-	 * Starts udp relay server. Spawns two threads of execution and returns.
+	 * Starts udp relay server. Registers with the shared relay loop, or if
+	 * relaying through another proxy spawns two threads of execution, and
+	 * returns.
 	 */
-	public void start() throws IOException {
-		remote_sock.setSoTimeout(iddleTimeout);
-		client_sock.setSoTimeout(iddleTimeout);
+	public synchronized void start() throws IOException {
+		running = true;
+		lastReadTime = System.currentTimeMillis();
+		if (client_channel != null) {
+			UDPRelayLoop.shared().register(this);
+			return;
+		}
+
+		if (iddleTimeout != 0) {
+			idle = IdleTimer.shared().watch(iddleTimeout, new Runnable() {
+				public void run() {
+					abort();
+				}
+			});
+		}
 
 		//log.info("Starting UDP relay server on {}:{}", relayIP, relayPort);
 		//log.info("Remote socket {}:{}", remote_sock.getLocalAddress(),
 			//	remote_sock.getLocalPort());
 
-		pipe_thread1 = new Thread(this, "pipe1");
-		pipe_thread2 = new Thread(this, "pipe2");
-
-		lastReadTime = System.currentTimeMillis();
+		pipe_thread1 = ProxyServer.newThread(new Pipe(remote_sock, client_sock,
+				false));
+		pipe_thread2 = ProxyServer.newThread(new Pipe(client_sock, remote_sock,
+				true));
 
 		pipe_thread1.start();
 		pipe_thread2.start();
@@ -144,35 +189,62 @@ class UDPRelayServer implements Runnable {
 		abort();
 	}
 
-	// Runnable interface
-	// //////////////////
-	public void run() {
-		try {
-			if (Thread.currentThread().getName().equals("pipe1")) {
-				pipe(remote_sock, client_sock, false);
-			} else {
-				pipe(client_sock, remote_sock, true);
-			}
-		} catch (final IOException ioe) {
-		} finally {
-			abort();
-			//log.info("UDP Pipe thread " + Thread.currentThread().getName()
-				//	+ " stopped.");
+	/**
+	 * One direction of the relay, run on its own thread.
+	 */
+	private class Pipe implements Runnable {
+		final DatagramSocket from;
+		final DatagramSocket to;
+		final boolean out;
+
+		Pipe(DatagramSocket from, DatagramSocket to, boolean out) {
+			this.from = from;
+			this.to = to;
+			this.out = out;
 		}
 
+		public void run() {
+			try {
+				pipe(from, to, out);
+			} catch (final IOException ioe) {
+			} finally {
+				abort();
+				//log.info("UDP Pipe thread " + Thread.currentThread().getName()
+					//	+ " stopped.");
+			}
+		}
 	}
 
-	// Private methods
-	// ///////////////
-	private synchronized void abort() {
-		if (pipe_thread1 == null) {
+	/**
+	 * Closes the relay, the control connection and interrupts the master
+	 * thread, unless stopped.
+	 */
+	synchronized void abort() {
+		if (!running) {
 			return;
 		}
+		running = false;
 
 		//log.info("Aborting UDP Relay Server");
 
-		remote_sock.close();
-		client_sock.close();
+		if (idle != null) {
+			IdleTimer.shared().cancel(idle);
+			idle = null;
+		}
+
+		if (client_channel != null) {
+			try {
+				client_channel.close();
+			} catch (final IOException ioe) {
+			}
+			try {
+				remote_channel.close();
+			} catch (final IOException ioe) {
+			}
+		} else {
+			remote_sock.close();
+			client_sock.close();
+		}
 
 		if (controlConnection != null) {
 			try {
@@ -185,21 +257,53 @@ class UDPRelayServer implements Runnable {
 			master_thread.interrupt();
 		}
 
-		pipe_thread1.interrupt();
-		pipe_thread2.interrupt();
+		if (pipe_thread1 != null) {
+			pipe_thread1.interrupt();
+			pipe_thread2.interrupt();
+			pipe_thread1 = pipe_thread2 = null;
+		}
+	}
+
+	// Private methods
+	// ///////////////
 
-		pipe_thread1 = null;
+	/**
+	 * Opens the non blocking channels relayed by UDPRelayLoop.
+	 */
+	private void openChannels() throws IOException {
+		client_channel = DatagramChannel.open();
+		remote_channel = DatagramChannel.open();
+		try {
+			client_channel.socket().bind(new InetSocketAddress(0));
+			remote_channel.socket().bind(new InetSocketAddress(0));
+			client_channel.configureBlocking(false);
+			remote_channel.configureBlocking(false);
+		} catch (final IOException ioe) {
+			client_channel.close();
+			remote_channel.close();
+			throw ioe;
+		}
+
+		relayPort = client_channel.socket().getLocalPort();
+		relayIP = client_channel.socket().getLocalAddress();
+		if (relayIP.isAnyLocalAddress()) {
+			relayIP = InetAddress.getLocalHost();
+		}
 	}
 
 	private void pipe(DatagramSocket from, DatagramSocket to, boolean out)
 			throws IOException {
 		final byte[] data = new byte[datagramSize];
 		final DatagramPacket dp = new DatagramPacket(data, data.length);
+		// Aborted by the IdleTimer once idle, which closes the sockets.
+		final IdleTimer.Entry idle = this.idle;
 
 		while (true) {
 			try {
 				from.receive(dp);
-				lastReadTime = System.currentTimeMillis();
+				if (idle != null) {
+					idle.touch();
+				}
 
 				if (auth.checkRequest(dp, out)) {
 					to.send(dp);
@@ -207,21 +311,9 @@ class UDPRelayServer implements Runnable {
 
 			} catch (final UnknownHostException uhe) {
 				//log.info("Dropping datagram for unknown host");
-			} catch (final InterruptedIOException iioe) {
-				// log("Interrupted: "+iioe);
-				// If we were interrupted by other thread.
-				if (iddleTimeout == 0) {
-					return;
-				}
-
-				// If last datagram was received, long time ago, return.
-				final long timeSinceRead = System.currentTimeMillis()
-						- lastReadTime;
-				if (timeSinceRead >= iddleTimeout - 100) {
-					return;
-				}
 			}
-			dp.setLength(data.length);
+			// Receive may have moved the offset past a header.
+			dp.setData(data);
 		}
 	}
 }
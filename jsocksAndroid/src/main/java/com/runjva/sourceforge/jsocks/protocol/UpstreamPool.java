@@ -0,0 +1,206 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of warm sessions with an upstream proxy, used by ProxyServer when
+ * chaining.
+ * <p>
+ * A session is a copy of the upstream proxy on which startSession already
+ * ran: the connection is open, the method is negotiated and authentication
+ * is done, so a CONNECT only costs the request and the reply. Whenever a
+ * session is taken a new one is started in the background, keeping up to
+ * size sessions ready. Sessions which were idle for longer than the idle
+ * timeout are closed by the shared IdleTimer and replaced, as the upstream
+ * proxy may have given up on them.
+ * <p>
+ * If a pooled session turns out to be dead when used, the request is retried
+ * once on a fresh session.
+ */
+class UpstreamPool {
+
+	static final int QUEUE_SIZE = 64;
+
+	final SocksProxyBase proxy;
+	final int size;
+	final long idleTimeout;
+
+	private final LinkedBlockingDeque<Session> idle = new LinkedBlockingDeque<Session>();
+	private final AtomicInteger starting = new AtomicInteger();
+	private final ThreadPoolExecutor starter;
+	private volatile boolean closed = false;
+
+	private static final class Session {
+		final SocksProxyBase proxy;
+		final long started;
+		IdleTimer.Entry expiry;
+
+		Session(final SocksProxyBase proxy, final long started) {
+			this.proxy = proxy;
+			this.started = started;
+		}
+	}
+
+	/**
+	 * Creates the pool and starts filling it.
+	 *
+	 * @param proxy
+	 *            Upstream proxy, sessions are made from copies of it.
+	 * @param size
+	 *            Number of sessions to keep ready.
+	 * @param idleTimeout
+	 *            How long in ms a session may wait before it is closed.
+	 */
+	UpstreamPool(final SocksProxyBase proxy, final int size,
+			final long idleTimeout) {
+		this.proxy = proxy;
+		this.size = size;
+		this.idleTimeout = idleTimeout;
+		starter = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+				new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final Thread t = ProxyServer.newThread(r);
+						t.setName("UpstreamPool");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		starter.allowCoreThreadTimeOut(true);
+		fill();
+	}
+
+	/**
+	 * Connects to ip:port through the upstream proxy, on a pooled session if
+	 * one is ready.
+	 *
+	 * @return Proxy holding the established connection, and the reply of the
+	 *         upstream proxy in reply[0].
+	 */
+	SocksProxyBase connect(final InetAddress ip, final int port,
+			final ProxyMessage[] reply) throws SocksException {
+		evict(idleTimeout);
+		final Session session = idle.pollFirst();
+		fill();
+
+		if (session != null) {
+			IdleTimer.shared().cancel(session.expiry);
+			try {
+				reply[0] = request(session.proxy, ip, port);
+				return session.proxy;
+			} catch (final SocksException se) {
+				session.proxy.endSession();
+				if (se.getErrorCode() != SocksProxyBase.SOCKS_PROXY_IO_ERROR) {
+					throw se;
+				}
+				// The upstream proxy dropped the session, try a fresh one.
+			}
+		}
+
+		final SocksProxyBase p = proxy.copy();
+		reply[0] = p.connect(ip, port);
+		return p;
+	}
+
+	/**
+	 * Closes all idle sessions, sessions started afterwards are closed right
+	 * away.
+	 */
+	void close() {
+		closed = true;
+		starter.shutdownNow();
+		evict(Long.MAX_VALUE);
+	}
+
+	/** Number of sessions ready for use. */
+	int idle() {
+		return idle.size();
+	}
+
+	// Private methods
+	// ///////////////
+
+	private ProxyMessage request(final SocksProxyBase p, final InetAddress ip,
+			final int port) throws SocksException {
+		final ProxyMessage request = p.formMessage(
+				SocksProxyBase.SOCKS_CMD_CONNECT, ip, port);
+		return p.exchange(request);
+	}
+
+	private void evict(final long maxAge) {
+		final long now = System.currentTimeMillis();
+		Session session;
+		// Oldest sessions are at the end.
+		while ((session = idle.peekLast()) != null) {
+			if ((maxAge != Long.MAX_VALUE) && (now - session.started < maxAge)) {
+				break;
+			}
+			if (idle.removeLastOccurrence(session)) {
+				IdleTimer.shared().cancel(session.expiry);
+				session.proxy.endSession();
+			}
+		}
+	}
+
+	/**
+	 * Closes the session if it is still idle, and starts a new one instead.
+	 * Runs on the IdleTimer thread.
+	 */
+	private void expire(final Session session) {
+		if (idle.removeFirstOccurrence(session)) {
+			ProxyServer.debug("Closing idle upstream session");
+			session.proxy.endSession();
+			fill();
+		}
+	}
+
+	/**
+	 * Starts sessions in the background until size are ready or starting.
+	 */
+	private void fill() {
+		while (!closed && (idle.size() + starting.get() < size)) {
+			starting.incrementAndGet();
+			try {
+				starter.execute(new Runnable() {
+					public void run() {
+						try {
+							start();
+						} finally {
+							starting.decrementAndGet();
+						}
+					}
+				});
+			} catch (final RejectedExecutionException ree) {
+				starting.decrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private void start() {
+		final SocksProxyBase p = proxy.copy();
+		try {
+			p.startSession();
+		} catch (final SocksException se) {
+			ProxyServer.debug("Unable to start upstream session", se);
+			return;
+		}
+		final Session session = new Session(p, System.currentTimeMillis());
+		session.expiry = IdleTimer.shared().watch(idleTimeout, new Runnable() {
+			public void run() {
+				expire(session);
+			}
+		});
+		idle.offerFirst(session);
+		if (closed) {
+			evict(Long.MAX_VALUE);
+		}
+	}
+}
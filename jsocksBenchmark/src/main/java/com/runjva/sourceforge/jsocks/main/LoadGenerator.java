@@ -0,0 +1,417 @@
+package com.runjva.sourceforge.jsocks.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.runjva.sourceforge.jsocks.protocol.NioProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
+import com.runjva.sourceforge.jsocks.protocol.Socks4Proxy;
+import com.runjva.sourceforge.jsocks.protocol.Socks5Proxy;
+import com.runjva.sourceforge.jsocks.protocol.SocksProxyBase;
+import com.runjva.sourceforge.jsocks.protocol.SocksSocket;
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Loopback load generator for the SOCKS servers.
+ * <p>
+ * Starts a proxy with ServerAuthenticatorNone, a local echo server and a
+ * number of client threads. Every client opens connections through the proxy
+ * with SocksSocket one after another, pushes the given amount of data through
+ * each of them and reads the echo back. Afterwards connection setup latency
+ * percentiles, per stream and aggregate throughput, and thread and heap usage
+ * are printed as "key: value" lines, so that runs can be compared by scripts.
+ * <p>
+ * Usage: LoadGenerator [-engine blocking|nio] [-version 4|5] [-clients n]
+ * [-connections n] [-bytes n] [-chunk n] [-loops n]
+ */
+public class LoadGenerator {
+
+	String engine = "blocking";
+	int version = 5;
+	int clients = 50;
+	int connections = 20;
+	int bytes = 256 * 1024;
+	int chunk = 16 * 1024;
+	int loops = 2;
+
+	static final int ECHO_BUF_SIZE = 64 * 1024;
+	static final int SAMPLE_INTERVAL = 100;
+
+	final InetAddress loopback;
+	final AtomicInteger failures = new AtomicInteger();
+	volatile long peakHeap = 0;
+
+	LoadGenerator() throws IOException {
+		loopback = InetAddress.getByName("127.0.0.1");
+	}
+
+	static public void usage() {
+		System.out.println("Usage: java LoadGenerator [-engine blocking|nio]"
+				+ " [-version 4|5] [-clients n] [-connections n]"
+				+ " [-bytes n] [-chunk n] [-loops n]\n"
+				+ "Every client opens the given number of connections one"
+				+ " after another and echoes bytes through each.\n");
+	}
+
+	static public void main(String[] args) throws Exception {
+		final LoadGenerator gen = new LoadGenerator();
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+				return;
+			}
+			final String name = args[i];
+			final String val = args[i + 1];
+			if (name.equals("-engine")) {
+				gen.engine = val;
+			} else if (name.equals("-version")) {
+				gen.version = Integer.parseInt(val);
+			} else if (name.equals("-clients")) {
+				gen.clients = Integer.parseInt(val);
+			} else if (name.equals("-connections")) {
+				gen.connections = Integer.parseInt(val);
+			} else if (name.equals("-bytes")) {
+				gen.bytes = Integer.parseInt(val);
+			} else if (name.equals("-chunk")) {
+				gen.chunk = Integer.parseInt(val);
+			} else if (name.equals("-loops")) {
+				gen.loops = Integer.parseInt(val);
+			} else {
+				usage();
+				return;
+			}
+		}
+		if (!gen.engine.equals("blocking") && !gen.engine.equals("nio")) {
+			usage();
+			return;
+		}
+		gen.run();
+		System.exit(gen.failures.get() == 0 ? 0 : 1);
+	}
+
+	void run() throws Exception {
+		final int echoPort = startEcho();
+		final int proxyPort = startProxy();
+
+		final SocksProxyBase proxy;
+		if (version == 4) {
+			proxy = new Socks4Proxy(loopback, proxyPort, "loadgen");
+		} else {
+			proxy = new Socks5Proxy(loopback, proxyPort);
+		}
+
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final int baseThreads = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+		startHeapSampler();
+
+		final long[][] latencies = new long[clients][connections];
+		final double[][] rates = new double[clients][connections];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(clients);
+		for (int i = 0; i < clients; i++) {
+			final int client = i;
+			final Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for (int c = 0; c < connections; c++) {
+							stream(proxy, echoPort, latencies[client],
+									rates[client], c);
+						}
+					} catch (final InterruptedException ie) {
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "LoadGenerator-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		final long startTime = System.nanoTime();
+		start.countDown();
+		done.await();
+		final long elapsed = System.nanoTime() - startTime;
+
+		report(latencies, rates, elapsed, baseThreads,
+				threads.getPeakThreadCount());
+	}
+
+	/**
+	 * One connection through the proxy, latency and rate are stored at the
+	 * given index, or -1 if the connection failed.
+	 */
+	void stream(final SocksProxyBase proxy, final int echoPort,
+			final long[] latencies, final double[] rates, final int index) {
+		latencies[index] = -1;
+		rates[index] = -1;
+		final byte[] out = new byte[chunk];
+		final byte[] in = new byte[chunk];
+		Socket s = null;
+		try {
+			final long t0 = System.nanoTime();
+			s = new SocksSocket(proxy, loopback, echoPort);
+			final long t1 = System.nanoTime();
+			s.setTcpNoDelay(true);
+			final OutputStream os = s.getOutputStream();
+			final InputStream is = s.getInputStream();
+			for (int l = 0; l < loops; l++) {
+				int sent = 0;
+				while (sent < bytes) {
+					final int len = Math.min(chunk, bytes - sent);
+					os.write(out, 0, len);
+					sent += len;
+					int got = 0;
+					while (got < len) {
+						final int n = is.read(in, 0, len - got);
+						if (n < 0) {
+							throw new IOException("Unexpected EOF");
+						}
+						got += n;
+					}
+				}
+			}
+			final long t2 = System.nanoTime();
+			latencies[index] = t1 - t0;
+			rates[index] = (2.0 * bytes * loops) / ((t2 - t1) / 1e9);
+		} catch (final IOException ioe) {
+			failures.incrementAndGet();
+		} finally {
+			if (s != null) {
+				try {
+					s.close();
+				} catch (final IOException ioe) {
+				}
+			}
+		}
+	}
+
+	void report(final long[][] latencies, final double[][] rates,
+			final long elapsed, final int baseThreads, final int peakThreads) {
+		final List<Long> lat = new ArrayList<Long>();
+		final List<Double> rate = new ArrayList<Double>();
+		for (int i = 0; i < clients; i++) {
+			for (int c = 0; c < connections; c++) {
+				if (latencies[i][c] >= 0) {
+					lat.add(latencies[i][c]);
+					rate.add(rates[i][c]);
+				}
+			}
+		}
+		final long[] l = new long[lat.size()];
+		final double[] r = new double[rate.size()];
+		for (int i = 0; i < l.length; i++) {
+			l[i] = lat.get(i);
+			r[i] = rate.get(i);
+		}
+		Arrays.sort(l);
+		Arrays.sort(r);
+
+		final double seconds = elapsed / 1e9;
+		final double total = 2.0 * bytes * loops * l.length;
+
+		print("engine", engine);
+		print("version", version);
+		print("clients", clients);
+		print("connections", clients * connections);
+		print("chunk", chunk);
+		print("failures", failures.get());
+		print("elapsed.ms", format(elapsed / 1e6));
+		print("connections.per.s", format(l.length / seconds));
+		print("setup.p50.us", format(percentile(l, 50) / 1e3));
+		print("setup.p90.us", format(percentile(l, 90) / 1e3));
+		print("setup.p99.us", format(percentile(l, 99) / 1e3));
+		print("setup.max.us", format(l.length == 0 ? 0 : l[l.length - 1] / 1e3));
+		print("stream.min.MBps", format(r.length == 0 ? 0 : r[0] / 1e6));
+		print("stream.p50.MBps", format(percentile(r, 50) / 1e6));
+		print("stream.max.MBps", format(r.length == 0 ? 0 : r[r.length - 1]
+				/ 1e6));
+		print("aggregate.MBps", format(total / seconds / 1e6));
+		print("threads.base", baseThreads);
+		print("threads.peak", peakThreads);
+		print("heap.peak.MB", format(peakHeap / 1e6));
+	}
+
+	// Servers
+	// ///////
+
+	int startProxy() throws IOException {
+		final int port = freePort();
+		final Runnable server;
+		if (engine.equals("nio")) {
+			final NioProxyServer nio = new NioProxyServer(
+					new ServerAuthenticatorNone(null, null), Runtime
+							.getRuntime().availableProcessors());
+			server = new Runnable() {
+				public void run() {
+					nio.start(port, 128, loopback);
+				}
+			};
+		} else {
+			final ProxyServer blocking = new ProxyServer(
+					new ServerAuthenticatorNone(null, null));
+			server = new Runnable() {
+				public void run() {
+					blocking.start(port, 128, loopback);
+				}
+			};
+		}
+		final Thread t = new Thread(server, "LoadGenerator-proxy");
+		t.setDaemon(true);
+		t.start();
+		awaitListening(port);
+		return port;
+	}
+
+	/**
+	 * Single threaded echo server, so that it does not add to the thread
+	 * count of the proxy.
+	 */
+	int startEcho() throws IOException {
+		final ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.socket().bind(new InetSocketAddress(loopback, 0), 128);
+		ssc.configureBlocking(false);
+		final Selector selector = Selector.open();
+		ssc.register(selector, SelectionKey.OP_ACCEPT);
+
+		final Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						selector.select();
+						final Iterator<SelectionKey> keys = selector
+								.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							final SelectionKey key = keys.next();
+							keys.remove();
+							try {
+								echo(key, selector);
+							} catch (final IOException ioe) {
+								key.channel().close();
+							}
+						}
+					}
+				} catch (final IOException ioe) {
+					ioe.printStackTrace();
+				}
+			}
+		}, "LoadGenerator-echo");
+		t.setDaemon(true);
+		t.start();
+		return ssc.socket().getLocalPort();
+	}
+
+	static void echo(final SelectionKey key, final Selector selector)
+			throws IOException {
+		if (key.isAcceptable()) {
+			final SocketChannel s = ((ServerSocketChannel) key.channel())
+					.accept();
+			if (s != null) {
+				s.configureBlocking(false);
+				s.register(selector, SelectionKey.OP_READ, ByteBuffer
+						.allocate(ECHO_BUF_SIZE));
+			}
+			return;
+		}
+		final SocketChannel s = (SocketChannel) key.channel();
+		final ByteBuffer buf = (ByteBuffer) key.attachment();
+		if (key.isReadable() && (s.read(buf) < 0)) {
+			s.close();
+			return;
+		}
+		buf.flip();
+		s.write(buf);
+		buf.compact();
+		// Stop reading while the echo can not be written out.
+		key.interestOps(buf.position() > 0 ? SelectionKey.OP_WRITE
+				: SelectionKey.OP_READ);
+	}
+
+	void startHeapSampler() {
+		final Thread t = new Thread(new Runnable() {
+			public void run() {
+				final Runtime rt = Runtime.getRuntime();
+				while (true) {
+					final long used = rt.totalMemory() - rt.freeMemory();
+					if (used > peakHeap) {
+						peakHeap = used;
+					}
+					try {
+						Thread.sleep(SAMPLE_INTERVAL);
+					} catch (final InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}, "LoadGenerator-heap");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void awaitListening(final int port) throws IOException {
+		for (int i = 0; i < 100; i++) {
+			try {
+				new Socket(loopback, port).close();
+				return;
+			} catch (final IOException ioe) {
+				try {
+					Thread.sleep(50);
+				} catch (final InterruptedException ie) {
+					break;
+				}
+			}
+		}
+		throw new IOException("Proxy did not start on port " + port);
+	}
+
+	int freePort() throws IOException {
+		final ServerSocket ss = new ServerSocket(0, 1, loopback);
+		final int port = ss.getLocalPort();
+		ss.close();
+		return port;
+	}
+
+	// Helpers
+	// ///////
+
+	static long percentile(final long[] sorted, final int p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+	}
+
+	static double percentile(final double[] sorted, final int p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+	}
+
+	static String format(final double d) {
+		return String.format("%.1f", d);
+	}
+
+	static void print(final String key, final Object value) {
+		System.out.println(key + ": " + value);
+	}
+}
@@ -0,0 +1,74 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SOCKS5 UDP encapsulation as done by the UDP relay. Two server mode sockets
+ * relay for each other over loopback: one adds the SOCKS5 header on send,
+ * the other strips it on receive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DatagramBenchmark {
+
+	@Param({ "64", "1400" })
+	int size;
+
+	Socks5DatagramSocket sender;
+	Socks5DatagramSocket receiver;
+	DatagramPacket outgoing;
+	DatagramPacket incoming;
+	byte[] receiveBuf;
+
+	@Setup
+	public void setup() throws IOException {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		receiver = new Socks5DatagramSocket(true, null, loopback, 0);
+		sender = new Socks5DatagramSocket(true, null, loopback,
+				receiver.getLocalPort());
+		receiver.relayPort = sender.getLocalPort();
+		receiver.setSoTimeout(1000);
+
+		// The destination carried in the header, a named loopback address
+		// so that forming the header does not do a reverse lookup.
+		final InetAddress target = InetAddress.getByAddress("localhost",
+				loopback.getAddress());
+		outgoing = new DatagramPacket(new byte[size], size, target, 53);
+		receiveBuf = new byte[size + 64];
+		incoming = new DatagramPacket(receiveBuf, receiveBuf.length);
+	}
+
+	@TearDown
+	public void tearDown() {
+		sender.close();
+		receiver.close();
+	}
+
+	@Benchmark
+	public int sendReceive() throws IOException {
+		sender.send(outgoing);
+		incoming.setData(receiveBuf);
+		receiver.receive(incoming);
+		return incoming.getLength();
+	}
+}
@@ -0,0 +1,99 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in a direct hosts range, done on every request when a proxy with
+ * direct hosts is set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InetRangeBenchmark {
+
+	/**
+	 * Number of IPv4 ranges, the same number of IPv6 prefixes and host
+	 * suffixes is added.
+	 */
+	@Param({ "16", "1024" })
+	int size;
+
+	InetRange range;
+	InetAddress missAddress;
+	InetAddress hitAddress;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		range = new InetRange();
+		for (int i = 0; i < size; i++) {
+			final int a = 10 + (i >> 8);
+			final int b = i & 0xFF;
+			range.add(a + "." + b + ".0.0:" + a + "." + b + ".127.255");
+			range.add(".example" + i + ".org");
+			range.add("2001:db8:" + Integer.toHexString(i) + "::/48");
+		}
+		// Named addresses, so that contains(InetAddress) does not fall back
+		// to reverse lookups.
+		hitAddress = InetAddress.getByAddress("hit.invalid", new byte[] { 10,
+				0, 1, 1 });
+		missAddress = InetAddress.getByAddress("miss.invalid", new byte[] {
+				(byte) 192, (byte) 168, 1, 1 });
+	}
+
+	@Benchmark
+	public boolean containsIpHit() {
+		return range.contains("10.0.1.1");
+	}
+
+	@Benchmark
+	public boolean containsIpMiss() {
+		return range.contains("192.168.1.1");
+	}
+
+	@Benchmark
+	public boolean containsIp6Hit() {
+		return range.contains("2001:db8:1:2::1");
+	}
+
+	@Benchmark
+	public boolean containsIp6Miss() {
+		return range.contains("2001:db9::1");
+	}
+
+	@Benchmark
+	public boolean containsHostSuffix() {
+		return range.contains("www.example" + (size - 1) + ".org", false);
+	}
+
+	@Benchmark
+	public boolean containsHostMiss() {
+		return range.contains("www.torproject.org", false);
+	}
+
+	@Benchmark
+	public boolean containsAddressHit() {
+		return range.contains(hitAddress);
+	}
+
+	@Benchmark
+	public boolean containsAddressMiss() {
+		return range.contains(missAddress);
+	}
+}
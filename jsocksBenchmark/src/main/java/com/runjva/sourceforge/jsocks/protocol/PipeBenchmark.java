@@ -0,0 +1,85 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Throughput of ProxyServer.pipe, relaying an in memory stream into a
+ * loopback connection drained by a separate thread. The score is in
+ * transfers of the given size per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipeBenchmark {
+
+	@Param({ "65536", "1048576" })
+	int size;
+
+	byte[] payload;
+	ProxyServer server;
+	ServerSocket sink;
+	Socket socket;
+	OutputStream out;
+
+	@Setup
+	public void setup() throws IOException {
+		payload = new byte[size];
+		server = new ProxyServer(new ServerAuthenticatorNone(null, null));
+
+		sink = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		final Thread drain = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final Socket s = sink.accept();
+					final InputStream in = s.getInputStream();
+					final byte[] buf = new byte[65536];
+					while (in.read(buf) >= 0) {
+					}
+					s.close();
+				} catch (final IOException ioe) {
+				}
+			}
+		}, "PipeBenchmark-drain");
+		drain.setDaemon(true);
+		drain.start();
+
+		socket = new Socket(sink.getInetAddress(), sink.getLocalPort());
+		out = socket.getOutputStream();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		socket.close();
+		sink.close();
+	}
+
+	@Benchmark
+	public void pipe() throws IOException {
+		server.pipe(new ByteArrayInputStream(payload), out);
+	}
+}
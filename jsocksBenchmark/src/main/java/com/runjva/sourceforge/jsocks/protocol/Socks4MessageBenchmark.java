@@ -0,0 +1,58 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and encoding of SOCKS4 requests, as done by ProxyServer for every
+ * session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Socks4MessageBenchmark {
+
+	InetAddress ip;
+	byte[] request;
+	final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+	@Setup
+	public void setup() throws IOException {
+		// Loopback, so that the name lookups done by the messages are
+		// answered locally and do not dominate the numbers.
+		ip = InetAddress.getByName("127.0.0.1");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new Socks4Message(Socks4Message.REQUEST_CONNECT, ip, 443, "user")
+				.write(bytes);
+		request = bytes.toByteArray();
+	}
+
+	@Benchmark
+	public ProxyMessage parseRequest() throws IOException {
+		return new Socks4Message(new ByteArrayInputStream(request), false);
+	}
+
+	@Benchmark
+	public int writeReply() throws IOException {
+		out.reset();
+		new Socks4Message(Socks4Message.REPLY_OK, ip, 1080).write(out);
+		return out.size();
+	}
+}
@@ -0,0 +1,72 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and encoding of requests with the reusable SocksRequest, as done by
+ * NioProxyServer for every session. Compare with Socks5MessageBenchmark and
+ * Socks4MessageBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SocksRequestBenchmark {
+
+	@Param({ "socks5-ipv4", "socks5-domain", "socks4", "socks4a" })
+	String request;
+
+	InetAddress ip;
+	ByteBuffer in;
+	final ByteBuffer out = ByteBuffer.allocateDirect(64);
+	final SocksRequest msg = new SocksRequest();
+
+	@Setup
+	public void setup() throws IOException {
+		ip = InetAddress.getByName("127.0.0.1");
+		final SocksRequest template = new SocksRequest();
+		template.version = request.startsWith("socks5") ? 5 : 4;
+		template.command = SocksProxyBase.SOCKS_CMD_CONNECT;
+		template.port = 443;
+		template.user = "user";
+		if (request.endsWith("domain") || request.equals("socks4a")) {
+			template.host = "www.torproject.org";
+		} else {
+			template.ip = ip;
+		}
+		in = ByteBuffer.allocateDirect(SocksRequest.MAX_LENGTH);
+		template.writeRequest(in);
+		in.flip();
+	}
+
+	@Benchmark
+	public SocksRequest parseRequest() throws IOException {
+		in.rewind();
+		msg.parse(in);
+		return msg;
+	}
+
+	@Benchmark
+	public int writeReply() {
+		out.clear();
+		SocksRequest.writeReply(out, 5, SocksProxyBase.SOCKS_SUCCESS, ip, 1080);
+		return out.position();
+	}
+}
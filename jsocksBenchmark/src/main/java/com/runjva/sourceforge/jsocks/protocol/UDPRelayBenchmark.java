@@ -0,0 +1,118 @@
+package com.runjva.sourceforge.jsocks.protocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.runjva.sourceforge.jsocks.server.ServerAuthenticatorNone;
+
+/**
+ * Packets per second through a UDPRelayServer over loopback, for bursts of
+ * DNS sized datagrams sent to an echo server. A batch size of 1 relays one
+ * datagram per wakeup of the relay loop, as before batching.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UDPRelayBenchmark {
+
+	static final int BURST = 32;
+	static final int PAYLOAD = 64;
+
+	@Param({ "1", "64" })
+	int batchSize;
+
+	DatagramChannel echo;
+	Thread echoThread;
+	DatagramSocket client;
+	UDPRelayServer relay;
+	DatagramPacket request;
+	DatagramPacket reply;
+
+	@Setup
+	public void setup() throws IOException {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		echo = DatagramChannel.open();
+		echo.socket().bind(new InetSocketAddress(loopback, 0));
+		echoThread = new Thread(new Runnable() {
+			public void run() {
+				final ByteBuffer buf = ByteBuffer.allocate(2048);
+				try {
+					while (true) {
+						buf.clear();
+						final java.net.SocketAddress from = echo.receive(buf);
+						buf.flip();
+						echo.send(buf, from);
+					}
+				} catch (final IOException ioe) {
+				}
+			}
+		});
+		echoThread.setDaemon(true);
+		echoThread.start();
+
+		client = new DatagramSocket(new InetSocketAddress(loopback, 0));
+		client.setSoTimeout(1000);
+		UDPRelayServer.setBatchSize(batchSize);
+		relay = new UDPRelayServer(loopback, client.getLocalPort(), null,
+				null, new ServerAuthenticatorNone(null, null));
+		relay.start();
+
+		final ByteBuffer buf = ByteBuffer.allocate(SocksRequest
+				.datagramHeaderLength(loopback) + PAYLOAD);
+		SocksRequest.writeDatagramHeader(buf, loopback, echo.socket()
+				.getLocalPort());
+		request = new DatagramPacket(buf.array(), buf.capacity(), loopback,
+				relay.getRelayPort());
+		reply = new DatagramPacket(new byte[2048], 2048);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		relay.stop();
+		client.close();
+		echo.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BURST)
+	public int burst() throws IOException {
+		for (int i = 0; i < BURST; i++) {
+			client.send(request);
+		}
+		int received = 0;
+		try {
+			while (received < BURST) {
+				reply.setLength(2048);
+				client.receive(reply);
+				received++;
+			}
+		} catch (final SocketTimeoutException ste) {
+			// Lost on loopback, counts against the score.
+		}
+		return received;
+	}
+}
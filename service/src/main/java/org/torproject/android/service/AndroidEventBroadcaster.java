@@ -8,39 +8,44 @@ import com.msopentech.thali.toronionproxy.TorSettings;
 
 import static org.torproject.android.service.TorServiceConstants.*;
 
+/**
+ * Publishes the events of the service in-process through the {@link LocalEventBus}, which also
+ * feeds the local broadcasts in batches. Only status changes are broadcast to other processes.
+ */
 public final class AndroidEventBroadcaster extends BaseEventBroadcaster {
 
+    private static LocalBroadcastBridge sBridge;
+
     private final LocalBroadcastManager mBroadcaster;
+    private final LocalEventBus mEventBus = LocalEventBus.getInstance();
     private final Context mContext;
 
     public AndroidEventBroadcaster(Context context, TorSettings settings) {
         super(settings);
         mContext = context;
-        mBroadcaster = LocalBroadcastManager.getInstance(context);;
+        mBroadcaster = LocalBroadcastManager.getInstance(context);
+        synchronized (AndroidEventBroadcaster.class) {
+            if (sBridge == null) {
+                sBridge = new LocalBroadcastBridge(mBroadcaster);
+                mEventBus.addListener(sBridge);
+            }
+        }
     }
 
     @Override
     public void broadcastBandwidth(long upload, long download, long written, long read) {
-        Intent intent = new Intent(LOCAL_ACTION_BANDWIDTH);
-        intent.putExtra("up", upload).putExtra("down", download).putExtra("written", written)
-                .putExtra("read", read).putExtra(EXTRA_STATUS, mStatus.getStatus());
-        mBroadcaster.sendBroadcast(intent);
+        mEventBus.postBandwidth(mStatus.getStatus(), upload, download, written, read);
     }
 
     @Override
     public void broadcastLogMessage(String logMessage) {
-        Intent intent = new Intent(LOCAL_ACTION_LOG);
-        intent.putExtra(LOCAL_EXTRA_LOG, logMessage);
-        intent.putExtra(EXTRA_STATUS, mStatus.getStatus());
-        mBroadcaster.sendBroadcast(intent);
+        mEventBus.postLog(mStatus.getStatus(), logMessage);
     }
 
     @Override
     public void broadcastStatus() {
-        Intent intent = getActionStatusIntent();
-        System.out.println("Sending status: " + mStatus.getStatus());
-        mBroadcaster.sendBroadcast(intent);
-        mContext.sendBroadcast(intent);
+        mEventBus.postStatus(mStatus.getStatus());
+        mContext.sendBroadcast(getActionStatusIntent());
     }
 
     private Intent getActionStatusIntent() {
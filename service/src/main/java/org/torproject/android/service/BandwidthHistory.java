@@ -0,0 +1,361 @@
+package org.torproject.android.service;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bytes read and written by tor over time, per second, minute and hour, with lifetime totals.
+ * <p>
+ * Each tier is a ring of buckets kept in {@code long[]} arrays, holding the bytes of the bucket
+ * and the highest number of bytes reported by a single bandwidth event in it. Every sample is
+ * added to all tiers, so queries only sum over a few buckets. Rates are sums divided by the time
+ * they span, e.g. {@code getRead(SECONDS, 10) / 10} bytes per second.
+ * <p>
+ * When a minute or an hour is over its bucket is appended to a small binary file of fixed size
+ * records, from which {@link #load()} restores those tiers and the totals. The file is rewritten
+ * from the tiers once it grows past {@link #MAX_FILE_SIZE}. The seconds are not kept across
+ * restarts.
+ */
+public final class BandwidthHistory {
+
+    public static final int SECONDS = 0;
+    public static final int MINUTES = 1;
+    public static final int HOURS = 2;
+
+    static final long[] PERIODS = {1000, 60 * 1000, 60 * 60 * 1000};
+    /** 5 minutes of seconds, 6 hours of minutes, 30 days of hours. */
+    static final int[] SIZES = {300, 360, 720};
+    static final long MAX_FILE_SIZE = 256 * 1024;
+
+    private static final String TAG = "BandwidthHistory";
+    /** Tier, bucket, read, written, both peaks and both totals. */
+    private static final int RECORD_SIZE = 1 + 7 * 8;
+
+    private final File mFile;
+    private final Tier[] mTiers = new Tier[PERIODS.length];
+    private long mTotalRead, mTotalWritten;
+
+    // Records waiting to be appended to the file.
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingOut = new DataOutputStream(mPending);
+
+    private static final class Tier {
+        final long period;
+        final long[] read, written, peakRead, peakWritten;
+        /** Newest bucket, -1 while empty. */
+        long last = -1;
+        /** Whether the newest bucket changed since it was last written to the file. */
+        boolean dirty = false;
+
+        Tier(long period, int size) {
+            this.period = period;
+            read = new long[size];
+            written = new long[size];
+            peakRead = new long[size];
+            peakWritten = new long[size];
+        }
+
+        /**
+         * Slot of bucket, moving the ring forward and clearing the skipped slots if it is newer
+         * than the newest one, -1 if it is too old to be kept.
+         */
+        int slot(long bucket) {
+            int size = read.length;
+            if (last < 0 || bucket - last >= size) {
+                clear(0, size);
+                last = bucket;
+            } else if (bucket > last) {
+                for (long b = last + 1; b <= bucket; b++) {
+                    clear((int) (b % size), (int) (b % size) + 1);
+                }
+                last = bucket;
+            } else if (last - bucket >= size) {
+                return -1;
+            }
+            return (int) (bucket % size);
+        }
+
+        /**
+         * Slot of bucket if it is in the ring, -1 otherwise.
+         */
+        int find(long bucket) {
+            return last < 0 || bucket > last || last - bucket >= read.length ? -1
+                    : (int) (bucket % read.length);
+        }
+
+        private void clear(int from, int to) {
+            Arrays.fill(read, from, to, 0);
+            Arrays.fill(written, from, to, 0);
+            Arrays.fill(peakRead, from, to, 0);
+            Arrays.fill(peakWritten, from, to, 0);
+        }
+    }
+
+    public BandwidthHistory(File file) {
+        mFile = file;
+        for (int i = 0; i < mTiers.length; i++) {
+            mTiers[i] = new Tier(PERIODS[i], SIZES[i]);
+        }
+    }
+
+    /**
+     * Restores the minutes, hours and totals from the file. Call once, before recording.
+     */
+    public synchronized void load() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        byte[] record = new byte[RECORD_SIZE];
+        long valid = 0;
+        boolean complete = false;
+        try {
+            while (true) {
+                in.readFully(record);
+                valid += RECORD_SIZE;
+                ByteBuffer buf = ByteBuffer.wrap(record);
+                int index = buf.get();
+                long bucket = buf.getLong();
+                if (index <= SECONDS || index >= mTiers.length || bucket < 0) {
+                    Log.e(TAG, "Skipping bad record in " + mFile);
+                    continue;
+                }
+                Tier tier = mTiers[index];
+                int slot = tier.slot(bucket);
+                if (slot >= 0) {
+                    tier.read[slot] = buf.getLong();
+                    tier.written[slot] = buf.getLong();
+                    tier.peakRead[slot] = buf.getLong();
+                    tier.peakWritten[slot] = buf.getLong();
+                } else {
+                    buf.position(buf.position() + 4 * 8);
+                }
+                mTotalRead = buf.getLong();
+                mTotalWritten = buf.getLong();
+            }
+        } catch (EOFException e) {
+            complete = true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading " + mFile, e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignored.
+            }
+        }
+        if (complete && mFile.length() > valid) {
+            // A record cut short by a crash, drop it so that the records appended from now on
+            // start at a record boundary.
+            truncate(valid);
+        }
+    }
+
+    /**
+     * Adds the bytes of a bandwidth event, appending the minute or hour it completes to the file.
+     */
+    public synchronized void record(long read, long written) {
+        record(System.currentTimeMillis(), read, written);
+    }
+
+    synchronized void record(long now, long read, long written) {
+        for (int i = 0; i < mTiers.length; i++) {
+            Tier tier = mTiers[i];
+            // A clock set back keeps adding to the newest bucket.
+            long bucket = Math.max(now / tier.period, tier.last);
+            if (i > SECONDS && bucket > tier.last && tier.dirty) {
+                writeRecord(i, tier.last);
+            }
+            int slot = tier.slot(bucket);
+            tier.read[slot] += read;
+            tier.written[slot] += written;
+            tier.peakRead[slot] = Math.max(tier.peakRead[slot], read);
+            tier.peakWritten[slot] = Math.max(tier.peakWritten[slot], written);
+            tier.dirty = true;
+        }
+        mTotalRead += read;
+        mTotalWritten += written;
+        if (mPending.size() > 0) {
+            append();
+        }
+    }
+
+    /**
+     * Writes the current minute and hour to the file, e.g. when tor stops.
+     */
+    public synchronized void flush() {
+        for (int i = SECONDS + 1; i < mTiers.length; i++) {
+            if (mTiers[i].dirty) {
+                writeRecord(i, mTiers[i].last);
+            }
+        }
+        if (mPending.size() > 0) {
+            append();
+        }
+    }
+
+    public synchronized long getTotalRead() {
+        return mTotalRead;
+    }
+
+    public synchronized long getTotalWritten() {
+        return mTotalWritten;
+    }
+
+    /**
+     * Bytes read during the last count buckets of tier, the current one included.
+     */
+    public synchronized long getRead(int tier, int count) {
+        return sum(mTiers[tier], mTiers[tier].read, count, false);
+    }
+
+    public synchronized long getWritten(int tier, int count) {
+        return sum(mTiers[tier], mTiers[tier].written, count, false);
+    }
+
+    /**
+     * Most bytes read by a single bandwidth event, about a second, during the last count buckets
+     * of tier.
+     */
+    public synchronized long getPeakRead(int tier, int count) {
+        return sum(mTiers[tier], mTiers[tier].peakRead, count, true);
+    }
+
+    public synchronized long getPeakWritten(int tier, int count) {
+        return sum(mTiers[tier], mTiers[tier].peakWritten, count, true);
+    }
+
+    /**
+     * Copies the bytes of the last buckets of tier into read and written, oldest first and the
+     * current one last, as many as fit and the tier holds.
+     *
+     * @return The number of buckets copied.
+     */
+    public synchronized int getSamples(int tier, long[] read, long[] written) {
+        Tier t = mTiers[tier];
+        int count = Math.min(Math.min(read.length, written.length), t.read.length);
+        long first = System.currentTimeMillis() / t.period - count + 1;
+        for (int i = 0; i < count; i++) {
+            int slot = t.find(first + i);
+            read[i] = slot < 0 ? 0 : t.read[slot];
+            written[i] = slot < 0 ? 0 : t.written[slot];
+        }
+        return count;
+    }
+
+    // Private methods
+
+    private long sum(Tier tier, long[] values, int count, boolean max) {
+        long current = System.currentTimeMillis() / tier.period;
+        long result = 0;
+        for (int i = 0; i < Math.min(count, values.length); i++) {
+            int slot = tier.find(current - i);
+            if (slot >= 0) {
+                result = max ? Math.max(result, values[slot]) : result + values[slot];
+            }
+        }
+        return result;
+    }
+
+    private void writeRecord(int index, long bucket) {
+        Tier tier = mTiers[index];
+        int slot = tier.find(bucket);
+        try {
+            mPendingOut.writeByte(index);
+            mPendingOut.writeLong(bucket);
+            mPendingOut.writeLong(tier.read[slot]);
+            mPendingOut.writeLong(tier.written[slot]);
+            mPendingOut.writeLong(tier.peakRead[slot]);
+            mPendingOut.writeLong(tier.peakWritten[slot]);
+            mPendingOut.writeLong(mTotalRead);
+            mPendingOut.writeLong(mTotalWritten);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream.
+        }
+        if (bucket == tier.last) {
+            tier.dirty = false;
+        }
+    }
+
+    /**
+     * Appends the pending records to the file, or rewrites it from the tiers once it is too big.
+     */
+    private void append() {
+        if (mFile.length() + mPending.size() > MAX_FILE_SIZE) {
+            mPending.reset();
+            for (int i = SECONDS + 1; i < mTiers.length; i++) {
+                Tier tier = mTiers[i];
+                for (long b = tier.last - tier.read.length + 1; b <= tier.last; b++) {
+                    int slot = tier.find(b);
+                    if (slot >= 0 && (tier.read[slot] != 0 || tier.written[slot] != 0)) {
+                        writeRecord(i, b);
+                    }
+                }
+            }
+            File tmp = new File(mFile.getPath() + ".tmp");
+            if (write(tmp, false) && !tmp.renameTo(mFile)) {
+                Log.e(TAG, "Error replacing " + mFile);
+            }
+        } else {
+            long length = mFile.length();
+            if (!write(mFile, true)) {
+                // Drop what may have been written of the records.
+                truncate(length);
+            }
+        }
+        mPending.reset();
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Error truncating " + mFile, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignored.
+                }
+            }
+        }
+    }
+
+    private boolean write(File file, boolean append) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file, append);
+            mPending.writeTo(out);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing " + file, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignored.
+                }
+            }
+        }
+    }
+}
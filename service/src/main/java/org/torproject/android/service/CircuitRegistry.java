@@ -0,0 +1,281 @@
+package org.torproject.android.service;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuits of tor as reported by {@code CIRC} events, indexed by circuit ID and by relay.
+ * <p>
+ * Paths are scanned in place. A hop which is already known at the same position of the circuit
+ * is recognized by comparing regions of the path, so the events repeating a path, like
+ * {@code EXTENDED} and {@code BUILT}, allocate nothing for it. Relays are interned by fingerprint
+ * and know the circuits running through them. Circuits are dropped once {@code FAILED} or
+ * {@code CLOSED}, and relays once no circuit uses them.
+ * <p>
+ * Updates come from the control connection; lookups may be done from any thread without locking.
+ */
+public final class CircuitRegistry {
+
+    static final String[] STATES = {"LAUNCHED", "BUILT", "GUARD_WAIT", "EXTENDED", "FAILED",
+            "CLOSED"};
+    static final int MAX_TRANSITIONS = 16;
+
+    private static final Relay[] NO_HOPS = new Relay[0];
+
+    private final ConcurrentHashMap<String, Circuit> mCircuits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Relay> mRelays = new ConcurrentHashMap<>();
+
+    public static final class Relay {
+        public final String fingerprint;
+        volatile String nickname;
+        final Set<Circuit> circuits = Collections.newSetFromMap(
+                new ConcurrentHashMap<Circuit, Boolean>());
+
+        Relay(String fingerprint, String nickname) {
+            this.fingerprint = fingerprint;
+            this.nickname = nickname;
+        }
+
+        /**
+         * Nickname of the relay, its fingerprint if tor did not report one.
+         */
+        public String getNickname() {
+            return nickname;
+        }
+
+        /**
+         * Circuits currently running through this relay.
+         */
+        public List<Circuit> getCircuits() {
+            return new ArrayList<>(circuits);
+        }
+
+        boolean matches(String path, int start, int nameStart, int end) {
+            int fpEnd = nameStart < 0 ? end : nameStart - 1;
+            return fpEnd - start == fingerprint.length()
+                    && path.regionMatches(start, fingerprint, 0, fingerprint.length())
+                    && (nameStart < 0 || (end - nameStart == nickname.length()
+                    && path.regionMatches(nameStart, nickname, 0, nickname.length())));
+        }
+    }
+
+    public static final class Transition {
+        public final String status;
+        /** In {@link SystemClock#elapsedRealtime()} time. */
+        public final long time;
+
+        Transition(String status, long time) {
+            this.status = status;
+            this.time = time;
+        }
+    }
+
+    public static final class Circuit {
+        public final String id;
+        volatile String status;
+        /** Replaced, never modified, when the path changes. */
+        volatile Relay[] hops = NO_HOPS;
+        private final ArrayList<Transition> mTransitions = new ArrayList<>();
+
+        Circuit(String id) {
+            this.id = id;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public List<Relay> getHops() {
+            Relay[] h = hops;
+            List<Relay> list = new ArrayList<>(h.length);
+            Collections.addAll(list, h);
+            return list;
+        }
+
+        /**
+         * Last hop of the circuit, or null while it has none.
+         */
+        public Relay getExit() {
+            Relay[] h = hops;
+            return h.length == 0 ? null : h[h.length - 1];
+        }
+
+        /**
+         * States the circuit went through, oldest first.
+         */
+        public List<Transition> getTransitions() {
+            synchronized (mTransitions) {
+                return new ArrayList<>(mTransitions);
+            }
+        }
+
+        void transition(String newStatus) {
+            if (newStatus.equals(status)) {
+                return;
+            }
+            status = newStatus;
+            synchronized (mTransitions) {
+                if (mTransitions.size() == MAX_TRANSITIONS) {
+                    mTransitions.remove(0);
+                }
+                mTransitions.add(new Transition(newStatus, SystemClock.elapsedRealtime()));
+            }
+        }
+    }
+
+    /**
+     * Applies a {@code CIRC} event.
+     *
+     * @param path Comma separated hops, each {@code $fingerprint} optionally followed by
+     *             {@code ~nickname} or {@code =nickname}. May be empty or null.
+     * @return The circuit, which is no longer registered if it failed or closed.
+     */
+    public synchronized Circuit update(String circId, String status, String path) {
+        Circuit circuit = mCircuits.get(circId);
+        if (circuit == null) {
+            circuit = new Circuit(circId);
+            mCircuits.put(circId, circuit);
+        }
+        circuit.transition(canonical(status));
+        setPath(circuit, path == null ? "" : path);
+
+        if ("FAILED".equals(circuit.status) || "CLOSED".equals(circuit.status)) {
+            mCircuits.remove(circId);
+            for (Relay relay : circuit.hops) {
+                release(circuit, relay);
+            }
+        }
+        return circuit;
+    }
+
+    public Circuit getCircuit(String circId) {
+        return mCircuits.get(circId);
+    }
+
+    public Collection<Circuit> getCircuits() {
+        return Collections.unmodifiableCollection(mCircuits.values());
+    }
+
+    public Relay getRelay(String fingerprint) {
+        return mRelays.get(fingerprint);
+    }
+
+    /**
+     * Circuits currently running through the relay with the given fingerprint.
+     */
+    public List<Circuit> getCircuitsThrough(String fingerprint) {
+        Relay relay = mRelays.get(fingerprint);
+        return relay == null ? Collections.<Circuit>emptyList() : relay.getCircuits();
+    }
+
+    public synchronized void clear() {
+        mCircuits.clear();
+        mRelays.clear();
+    }
+
+    // Path scanning
+
+    private void setPath(Circuit circuit, String path) {
+        Relay[] old = circuit.hops;
+        int count = 0;
+        for (int start = 0; start < path.length(); count++) {
+            int end = path.indexOf(',', start);
+            start = end < 0 ? path.length() : end + 1;
+        }
+        if (count == old.length && scan(path, old, null)) {
+            return; // Same path, nothing allocated.
+        }
+
+        Relay[] hops = new Relay[count];
+        scan(path, old, hops);
+        for (Relay relay : hops) {
+            relay.circuits.add(circuit);
+        }
+        circuit.hops = hops;
+        for (Relay relay : old) {
+            if (!contains(hops, relay)) {
+                release(circuit, relay);
+            }
+        }
+    }
+
+    /**
+     * Walks the hops of path. Without hops, only checks whether they all match old, otherwise
+     * fills hops, reusing the relays of old which match.
+     */
+    private boolean scan(String path, Relay[] old, Relay[] hops) {
+        int start = 0;
+        for (int i = 0; start < path.length(); i++) {
+            int end = path.indexOf(',', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            int fpStart = path.charAt(start) == '$' ? start + 1 : start;
+            int nameStart = nameStart(path, fpStart, end);
+            boolean match = i < old.length && old[i].matches(path, fpStart, nameStart, end);
+            if (hops == null) {
+                if (!match) {
+                    return false;
+                }
+            } else {
+                hops[i] = match ? old[i] : intern(path, fpStart, nameStart, end);
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    private static int nameStart(String path, int from, int end) {
+        for (int i = from; i < end; i++) {
+            char c = path.charAt(i);
+            if (c == '~' || c == '=') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private Relay intern(String path, int fpStart, int nameStart, int end) {
+        String fingerprint = path.substring(fpStart, nameStart < 0 ? end : nameStart - 1);
+        Relay relay = mRelays.get(fingerprint);
+        if (relay == null) {
+            String nickname = nameStart < 0 ? fingerprint : path.substring(nameStart, end);
+            relay = new Relay(fingerprint, nickname);
+            mRelays.put(fingerprint, relay);
+        } else if (nameStart >= 0 && !relay.matches(path, fpStart, nameStart, end)) {
+            relay.nickname = path.substring(nameStart, end);
+        }
+        return relay;
+    }
+
+    private static boolean contains(Relay[] hops, Relay relay) {
+        for (Relay hop : hops) {
+            if (hop == relay) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void release(Circuit circuit, Relay relay) {
+        relay.circuits.remove(circuit);
+        if (relay.circuits.isEmpty()) {
+            mRelays.remove(relay.fingerprint, relay);
+        }
+    }
+
+    private static String canonical(String status) {
+        for (String state : STATES) {
+            if (state.equals(status)) {
+                return state;
+            }
+        }
+        return status;
+    }
+}
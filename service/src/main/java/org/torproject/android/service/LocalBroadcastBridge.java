@@ -0,0 +1,70 @@
+package org.torproject.android.service;
+
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.List;
+
+import static org.torproject.android.service.TorServiceConstants.*;
+
+/**
+ * Passes the batches of the {@link LocalEventBus} on to receivers of the local broadcasts, with as
+ * few {@code Intent}s as possible: consecutive log messages are joined into one
+ * {@code LOCAL_ACTION_LOG} separated by newlines, and only the latest bandwidth of a batch is sent.
+ */
+final class LocalBroadcastBridge implements LocalEventBus.Listener {
+
+    private final LocalBroadcastManager mBroadcaster;
+    private final StringBuilder mLog = new StringBuilder();
+
+    LocalBroadcastBridge(LocalBroadcastManager broadcaster) {
+        mBroadcaster = broadcaster;
+    }
+
+    @Override
+    public void onEvents(List<LocalEventBus.Event> events) {
+        LocalEventBus.Event lastLog = null;
+        LocalEventBus.Event lastBandwidth = null;
+        for (LocalEventBus.Event event : events) {
+            if (event.type == LocalEventBus.TYPE_BANDWIDTH) {
+                lastBandwidth = event;
+            }
+        }
+        for (LocalEventBus.Event event : events) {
+            switch (event.type) {
+                case LocalEventBus.TYPE_LOG:
+                    if (mLog.length() > 0) {
+                        mLog.append('\n');
+                    }
+                    mLog.append(event.message);
+                    lastLog = event;
+                    break;
+                case LocalEventBus.TYPE_BANDWIDTH:
+                    if (event == lastBandwidth) {
+                        flushLog(lastLog);
+                        mBroadcaster.sendBroadcast(new Intent(LOCAL_ACTION_BANDWIDTH)
+                                .putExtra("up", event.upload).putExtra("down", event.download)
+                                .putExtra("written", event.written).putExtra("read", event.read)
+                                .putExtra(EXTRA_STATUS, event.status));
+                    }
+                    break;
+                case LocalEventBus.TYPE_STATUS:
+                    flushLog(lastLog);
+                    mBroadcaster.sendBroadcast(new Intent(ACTION_STATUS)
+                            .putExtra(EXTRA_STATUS, event.status));
+                    break;
+            }
+        }
+        flushLog(lastLog);
+    }
+
+    private void flushLog(LocalEventBus.Event last) {
+        if (mLog.length() == 0) {
+            return;
+        }
+        mBroadcaster.sendBroadcast(new Intent(LOCAL_ACTION_LOG)
+                .putExtra(LOCAL_EXTRA_LOG, mLog.toString())
+                .putExtra(EXTRA_STATUS, last.status));
+        mLog.setLength(0);
+    }
+}
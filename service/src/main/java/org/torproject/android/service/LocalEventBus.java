@@ -0,0 +1,146 @@
+package org.torproject.android.service;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process bus for the log, bandwidth and status events of the service.
+ * <p>
+ * Events are queued in a bounded ring buffer and delivered to the listeners on the main thread
+ * in batches, one dispatch per {@link #DISPATCH_INTERVAL_MS}, instead of an {@code Intent} per
+ * event. If more than {@link #CAPACITY} events arrive within an interval the oldest are dropped.
+ * Cross-process consumers still get the {@code ACTION_STATUS} broadcast.
+ */
+public final class LocalEventBus {
+
+    public static final int TYPE_LOG = 0;
+    public static final int TYPE_BANDWIDTH = 1;
+    public static final int TYPE_STATUS = 2;
+
+    static final int CAPACITY = 512;
+    static final long DISPATCH_INTERVAL_MS = 100;
+
+    private static LocalEventBus sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final Event[] mRing = new Event[CAPACITY];
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mDropped = 0;
+    private boolean mScheduled = false;
+
+    private final Runnable mDispatcher = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    public interface Listener {
+        /**
+         * Called on the main thread with the events queued since the last call, oldest first.
+         */
+        void onEvents(List<Event> events);
+    }
+
+    public static final class Event {
+        public final int type;
+        /** When the event was queued, in {@link SystemClock#elapsedRealtime()} time. */
+        public final long time;
+        /** Status of tor when the event was queued. */
+        public final String status;
+        /** Message of a log event. */
+        public final String message;
+        /** Bandwidth of a bandwidth event: rates and totals in bytes. */
+        public final long upload, download, written, read;
+
+        Event(int type, String status, String message, long upload, long download, long written,
+              long read) {
+            this.type = type;
+            this.time = SystemClock.elapsedRealtime();
+            this.status = status;
+            this.message = message;
+            this.upload = upload;
+            this.download = download;
+            this.written = written;
+            this.read = read;
+        }
+    }
+
+    public static synchronized LocalEventBus getInstance() {
+        if (sInstance == null) {
+            sInstance = new LocalEventBus();
+        }
+        return sInstance;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Number of events dropped so far because the ring buffer was full.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    void postLog(String status, String message) {
+        post(new Event(TYPE_LOG, status, message, 0, 0, 0, 0));
+    }
+
+    void postBandwidth(String status, long upload, long download, long written, long read) {
+        post(new Event(TYPE_BANDWIDTH, status, null, upload, download, written, read));
+    }
+
+    void postStatus(String status) {
+        post(new Event(TYPE_STATUS, status, null, 0, 0, 0, 0));
+    }
+
+    private synchronized void post(Event event) {
+        if (mSize == CAPACITY) {
+            mHead = (mHead + 1) % CAPACITY;
+            mSize--;
+            mDropped++;
+        }
+        mRing[(mHead + mSize) % CAPACITY] = event;
+        mSize++;
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mDispatcher, DISPATCH_INTERVAL_MS);
+        }
+    }
+
+    private void dispatch() {
+        List<Event> events;
+        synchronized (this) {
+            mScheduled = false;
+            events = new ArrayList<>(mSize);
+            for (int i = 0; i < mSize; i++) {
+                int index = (mHead + i) % CAPACITY;
+                events.add(mRing[index]);
+                mRing[index] = null;
+            }
+            mHead = 0;
+            mSize = 0;
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        events = Collections.unmodifiableList(events);
+        for (Listener listener : mListeners) {
+            listener.onEvents(events);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.torproject.android.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+/**
+ * Coalesces frequent notification updates, like the bandwidth which tor reports every second.
+ * <p>
+ * Updates only record the latest text and icon. The notification is posted from the main thread
+ * at most once per {@link #MIN_INTERVAL_MS}, and only when the text or icon differs from what was
+ * last posted. While the screen is off nothing is posted; the latest update is shown when the
+ * screen turns back on.
+ */
+final class NotificationScheduler extends BroadcastReceiver implements Runnable {
+
+    static final long MIN_INTERVAL_MS = 2000;
+
+    private final TorService mService;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private String mPendingText;
+    private int mPendingIcon;
+    private String mPostedText;
+    private int mPostedIcon;
+    private long mLastPost;
+    private boolean mScheduled = false;
+    private boolean mScreenOn;
+
+    NotificationScheduler(TorService service) {
+        mService = service;
+        PowerManager pm = (PowerManager) service.getSystemService(Context.POWER_SERVICE);
+        mScreenOn = pm == null || pm.isInteractive();
+    }
+
+    static IntentFilter getIntentFilter() {
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        return filter;
+    }
+
+    /**
+     * Shows text with the icon once the rate and the screen allow it, replacing any update which
+     * was not shown yet. May be called from any thread.
+     */
+    synchronized void post(String text, int icon) {
+        mPendingText = text;
+        mPendingIcon = icon;
+        schedule();
+    }
+
+    /**
+     * Drops the pending update, e.g. when the notification is cleared.
+     */
+    synchronized void cancel() {
+        mHandler.removeCallbacks(this);
+        mScheduled = false;
+        mPendingText = mPostedText = null;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        synchronized (this) {
+            mScreenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            if (mScreenOn) {
+                schedule();
+            } else {
+                mHandler.removeCallbacks(this);
+                mScheduled = false;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        String text;
+        int icon;
+        synchronized (this) {
+            mScheduled = false;
+            if (!hasChanged() || !mScreenOn) {
+                return;
+            }
+            text = mPostedText = mPendingText;
+            icon = mPostedIcon = mPendingIcon;
+            mLastPost = SystemClock.elapsedRealtime();
+        }
+        mService.notify(text, mService.getNotifyId(), icon);
+    }
+
+    private boolean hasChanged() {
+        return mPendingText != null
+                && (!TextUtils.equals(mPendingText, mPostedText) || mPendingIcon != mPostedIcon);
+    }
+
+    private void schedule() {
+        if (mScheduled || !mScreenOn || !hasChanged()) {
+            return;
+        }
+        long delay = mLastPost + MIN_INTERVAL_MS - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(this, Math.max(0, delay));
+        mScheduled = true;
+    }
+}
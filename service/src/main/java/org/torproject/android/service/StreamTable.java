@@ -0,0 +1,182 @@
+package org.torproject.android.service;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams of tor, with the circuit and target they use and their lifetime.
+ * <p>
+ * The onion proxy library only subscribes to a fixed set of events which does not include
+ * {@code STREAM} or {@code STREAM_BW}, so the table is fed by polling: each
+ * {@link TorService#refreshStreams()} applies the reply to {@code GETINFO stream-status},
+ * which also tells the circuit of each stream. Streams missing from such a reply are taken as
+ * closed. Opening and closing times are therefore only as precise as the polling, and streams
+ * which open and close between two polls are never seen. Bytes per stream are not known.
+ * <p>
+ * Open streams are all kept, closed ones only up to {@link #MAX_CLOSED}, evicting the least
+ * recently used.
+ */
+public final class StreamTable {
+
+    static final int MAX_CLOSED = 256;
+
+    private final Map<String, Stream> mOpen = new HashMap<>();
+    private final LinkedHashMap<String, Stream> mClosed =
+            new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+                    return size() > MAX_CLOSED;
+                }
+            };
+
+    public static final class Stream {
+        public final String id;
+        /**
+         * When the stream was first seen, in {@link SystemClock#elapsedRealtime()} time.
+         */
+        public final long opened;
+        volatile String status;
+        volatile String circuitId;
+        volatile String target;
+        volatile long closed = 0;
+
+        Stream(String id) {
+            this.id = id;
+            opened = SystemClock.elapsedRealtime();
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * ID of the circuit the stream is attached to, null if not known or not attached.
+         */
+        public String getCircuitId() {
+            return circuitId;
+        }
+
+        /**
+         * Target as {@code host:port}.
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        /**
+         * Whether the stream was missing from the last poll, or closed by an event.
+         */
+        public boolean isClosed() {
+            return closed != 0;
+        }
+
+        /**
+         * Time the stream was or has been open, in ms, from the poll it was first seen in to the
+         * one it was missing from.
+         */
+        public long getLifetime() {
+            long end = closed;
+            return (end != 0 ? end : SystemClock.elapsedRealtime()) - opened;
+        }
+    }
+
+    /**
+     * Applies a line of {@code stream-status}, or a {@code STREAM} event should tor send one.
+     *
+     * @param circuitId Null if not known, {@code "0"} if not attached.
+     */
+    public synchronized Stream update(String streamId, String status, String circuitId,
+                                      String target) {
+        Stream stream = mOpen.get(streamId);
+        if (stream == null) {
+            stream = mClosed.get(streamId);
+            if (stream == null) {
+                stream = new Stream(streamId);
+                mOpen.put(streamId, stream);
+            }
+        }
+        stream.status = status;
+        if (circuitId != null) {
+            stream.circuitId = "0".equals(circuitId) ? null : circuitId;
+        }
+        if (target != null) {
+            stream.target = target;
+        }
+        if ("CLOSED".equals(status) || "FAILED".equals(status)) {
+            close(stream);
+        }
+        return stream;
+    }
+
+    /**
+     * Applies the reply to {@code GETINFO stream-status}, one stream per line as
+     * {@code StreamID StreamStatus CircuitID Target}. Open streams it does not list are closed.
+     *
+     * @param streamStatus Null if tor could not be asked, which changes nothing.
+     */
+    public synchronized void updateAll(String streamStatus) {
+        if (streamStatus == null) {
+            return;
+        }
+        Set<String> listed = new HashSet<>();
+        for (String line : streamStatus.split("\n")) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length < 4) {
+                continue;
+            }
+            update(parts[0], parts[1], parts[2], parts[3]);
+            listed.add(parts[0]);
+        }
+        for (Stream stream : new ArrayList<>(mOpen.values())) {
+            if (!listed.contains(stream.id)) {
+                stream.status = "CLOSED";
+                close(stream);
+            }
+        }
+    }
+
+    public synchronized Stream getStream(String streamId) {
+        Stream stream = mOpen.get(streamId);
+        return stream != null ? stream : mClosed.get(streamId);
+    }
+
+    /**
+     * Open streams, then the closed ones which were kept.
+     */
+    public synchronized List<Stream> getStreams() {
+        List<Stream> streams = new ArrayList<>(mOpen.values());
+        streams.addAll(mClosed.values());
+        return streams;
+    }
+
+    public synchronized List<Stream> getStreamsOnCircuit(String circuitId) {
+        List<Stream> streams = new ArrayList<>();
+        for (Stream stream : getStreams()) {
+            if (circuitId.equals(stream.circuitId)) {
+                streams.add(stream);
+            }
+        }
+        return streams;
+    }
+
+    public synchronized void clear() {
+        mOpen.clear();
+        mClosed.clear();
+    }
+
+    private void close(Stream stream) {
+        if (stream.closed == 0) {
+            stream.closed = SystemClock.elapsedRealtime();
+        }
+        if (mOpen.remove(stream.id) != null) {
+            mClosed.put(stream.id, stream);
+        }
+    }
+}
@@ -8,7 +8,6 @@ import java.text.NumberFormat;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.StringTokenizer;
 
 /**
  * Created by n8fr8 on 9/25/16.
@@ -18,24 +17,32 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
     private final AndroidEventBroadcaster mBroadcaster;
     private final TorService mService;
     private final NumberFormat mNumberFormat;
+    private final StringBuilder mBandwidthText = new StringBuilder();
 
     private long lastRead = -1;
     private long lastWritten = -1;
     private long mTotalTrafficWritten;
     private long mTotalTrafficRead;
 
-    private HashMap<String, Node> hmBuiltNodes = new HashMap<>();
+    private final CircuitRegistry mCircuits = new CircuitRegistry();
+    private final StreamTable mStreams = new StreamTable();
+    private final BandwidthHistory mHistory;
 
-    public TorEventHandler(TorService service, AndroidEventBroadcaster eventBroadcaster) {
+    public TorEventHandler(TorService service, AndroidEventBroadcaster eventBroadcaster,
+                           BandwidthHistory history) {
         mService = service;
         mBroadcaster = eventBroadcaster;
+        mHistory = history;
         mNumberFormat = NumberFormat.getInstance(Locale.getDefault()); //localized numbers!
     }
 
     @Override
     public void bandwidthUsed(long read, long written) {
+        mHistory.record(read, written);
+
         if (read != lastRead || written != lastWritten) {
-            StringBuilder sb = new StringBuilder();
+            StringBuilder sb = mBandwidthText;
+            sb.setLength(0);
             sb.append(formatCount(read));
             sb.append(" \u2193");
             sb.append(" / ");
@@ -47,7 +54,7 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
             if (read > 0 || written > 0)
                 iconId = R.drawable.ic_stat_tor_xfer;
 
-            mService.notify(sb.toString(), mService.getNotifyId(), iconId);
+            mService.notifyCoalesced(sb.toString(), iconId);
 
             mTotalTrafficWritten += written;
             mTotalTrafficRead += read;
@@ -65,55 +72,25 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
             mBroadcaster.getStatus().on();
         }
 
-        StringBuilder sb = new StringBuilder().append("Circuit (").append((circID)).append(") ")
-                .append(status).append(": ");
-
-        StringTokenizer st = new StringTokenizer(path, ",");
-        Node node = null;
+        CircuitRegistry.Circuit circuit = mCircuits.update(circID, status, path);
 
-        while (st.hasMoreTokens()) {
-            String nodePath = st.nextToken();
-            node = new Node();
+        boolean debug = Prefs.useDebugLogging();
+        if (!debug && !"BUILT".equals(status) && !"CLOSED".equals(status))
+            return;
 
-            String[] nodeParts;
-
-            if (nodePath.contains("="))
-                nodeParts = nodePath.split("=");
-            else
-                nodeParts = nodePath.split("~");
-
-            if (nodeParts.length == 1) {
-                node.id = nodeParts[0].substring(1);
-                node.name = node.id;
-            } else if (nodeParts.length == 2) {
-                node.id = nodeParts[0].substring(1);
-                node.name = nodeParts[1];
-            }
-
-            node.status = status;
-
-            sb.append(node.name);
-
-            if (st.hasMoreTokens())
+        StringBuilder sb = new StringBuilder().append("Circuit (").append((circID)).append(") ")
+                .append(status).append(": ");
+        List<CircuitRegistry.Relay> hops = circuit.getHops();
+        for (int i = 0; i < hops.size(); i++) {
+            if (i > 0)
                 sb.append(" > ");
+            sb.append(hops.get(i).getNickname());
         }
 
-        if (Prefs.useDebugLogging())
+        if (debug)
             mBroadcaster.broadcastDebug(sb.toString());
-        else if ("BUILT".equals(status))
-            mBroadcaster.broadcastNotice(sb.toString());
-        else if ("CLOSED".equals(status))
+        else
             mBroadcaster.broadcastNotice(sb.toString());
-
-        if (Prefs.expandedNotifications()) {
-            //get IP from last nodename
-            if ("BUILT".equals(status)) {
-                hmBuiltNodes.put(circID, node);
-            }
-            if ("CLOSED".equals(status)) {
-                hmBuiltNodes.remove(circID);
-            }
-        }
     }
 
     private String formatCount(long count) {
@@ -130,8 +107,36 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
             ) / 100)) + "mbps";
     }
 
+    /**
+     * Circuits currently open, by ID and by relay.
+     */
+    public CircuitRegistry getCircuits() {
+        return mCircuits;
+    }
+
+    public StreamTable getStreams() {
+        return mStreams;
+    }
+
+    /**
+     * Exit nodes of the built circuits, by circuit ID.
+     *
+     * @deprecated Use {@link #getCircuits()}, which keeps all hops of every circuit.
+     */
+    @Deprecated
     public HashMap<String, Node> getNodes() {
-        return hmBuiltNodes;
+        HashMap<String, Node> nodes = new HashMap<>();
+        for (CircuitRegistry.Circuit circuit : mCircuits.getCircuits()) {
+            CircuitRegistry.Relay exit = circuit.getExit();
+            if ("BUILT".equals(circuit.getStatus()) && exit != null) {
+                Node node = new Node();
+                node.status = circuit.getStatus();
+                node.id = exit.fingerprint;
+                node.name = exit.getNickname();
+                nodes.put(circuit.id, node);
+            }
+        }
+        return nodes;
     }
 
     @Override
@@ -163,6 +168,8 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
 
     @Override
     public void streamStatus(String status, String streamID, String target) {
+        mStreams.update(streamID, status, null, target);
+
         StringBuilder sb = new StringBuilder().append("StreamStatus (").append((streamID)).append
                 ("): ").append(status);
         mBroadcaster.broadcastNotice(sb.toString());
@@ -177,6 +184,10 @@ public final class TorEventHandler implements EventHandler, TorServiceConstants
         }
     }
 
+    /**
+     * @deprecated See {@link #getNodes()}.
+     */
+    @Deprecated
     public class Node {
         String status;
         String id;
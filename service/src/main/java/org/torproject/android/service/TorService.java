@@ -19,6 +19,8 @@ import com.msopentech.thali.android.toronionproxy.AndroidOnionProxyManager;
 import com.msopentech.thali.toronionproxy.TorConfig;
 import com.msopentech.thali.toronionproxy.TorConfigBuilder;
 import com.msopentech.thali.toronionproxy.TorInstaller;
+import com.runjva.sourceforge.jsocks.protocol.ProxyMetrics;
+import com.runjva.sourceforge.jsocks.protocol.ProxyServer;
 import org.torproject.android.service.util.NotificationBuilderCompat;
 import org.torproject.android.service.util.Prefs;
 import org.torproject.android.service.util.TorServiceUtils;
@@ -26,8 +28,10 @@ import org.torproject.android.service.vpn.TorVpnService;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public final class TorService extends Service implements TorServiceConstants, OrbotConstants {
 
@@ -41,12 +45,14 @@ public final class TorService extends Service implements TorServiceConstants, Or
     private AndroidEventBroadcaster mEventBroadcaster;
     private DataService mDataService;
     private TorEventHandler mEventHandler;
+    private BandwidthHistory mBandwidthHistory;
     private ExecutorService mExecutor = Executors.newFixedThreadPool(3);
     private SharedPreferences mPrefs;
     private int mPortSOCKS;
     private NotificationManager mNotificationManager;
     private boolean mNotificationShowing = false;
     private NotificationBuilderCompat mNotifyBuilder;
+    private NotificationScheduler mNotificationScheduler;
 
     private final BroadcastReceiver mNetworkStateReceiver = new BroadcastReceiver() {
         @Override
@@ -81,6 +87,8 @@ public final class TorService extends Service implements TorServiceConstants, Or
     };
 
     public void clearNotifications() {
+        if (mNotificationScheduler != null)
+            mNotificationScheduler.cancel();
         if (mNotificationManager != null)
             mNotificationManager.cancelAll();
         mNotificationShowing = false;
@@ -117,6 +125,49 @@ public final class TorService extends Service implements TorServiceConstants, Or
         return mConnectivity;
     }
 
+    /**
+     * Traffic metrics of the SOCKS proxy used by the VPN for apps bypassing Tor. Only copies
+     * counters, cheap enough to be called for every status update.
+     */
+    public ProxyMetrics.Snapshot getProxyMetrics() {
+        return ProxyServer.getMetrics().snapshot();
+    }
+
+    /**
+     * Streams of tor with their circuits, as of the last {@link #refreshStreams()}. Does no I/O,
+     * may be called from any thread.
+     */
+    public StreamTable getStreams() {
+        return mEventHandler.getStreams();
+    }
+
+    /**
+     * Asks tor for its streams with {@code GETINFO stream-status}, on a worker thread as this is
+     * a round trip on the control connection. Tor is only asked when this is called, so nothing
+     * is polled while no one looks at the streams.
+     *
+     * @return Completes with the refreshed table.
+     */
+    public Future<StreamTable> refreshStreams() {
+        return mExecutor.submit(new Callable<StreamTable>() {
+            @Override
+            public StreamTable call() {
+                StreamTable streams = mEventHandler.getStreams();
+                if (onionProxyManager.isRunning()) {
+                    streams.updateAll(onionProxyManager.getInfo("stream-status"));
+                }
+                return streams;
+            }
+        });
+    }
+
+    /**
+     * Bytes read and written by tor per second, minute and hour, kept across restarts.
+     */
+    public BandwidthHistory getBandwidthHistory() {
+        return mBandwidthHistory;
+    }
+
     private void newIdentityAsync() {
         //it is possible to not have a connection yet, and someone might try to newnym
         new Thread() {
@@ -133,6 +184,14 @@ public final class TorService extends Service implements TorServiceConstants, Or
         }.start();
     }
 
+    /**
+     * Shows a status which changes often, like the bandwidth, coalescing updates so that the
+     * notification is not rebuilt more often than it can be seen.
+     */
+    public void notifyCoalesced(String notifyMsg, int icon) {
+        mNotificationScheduler.post(notifyMsg, icon);
+    }
+
     public void notify(String notifyMsg, int notifyType, int icon) {
         PackageManager pm = getPackageManager();
         Intent intent = pm.getLaunchIntentForPackage(getPackageName());
@@ -167,7 +226,8 @@ public final class TorService extends Service implements TorServiceConstants, Or
 
         Notification mNotification = mNotifyBuilder.build();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !mNotificationShowing) {
+            // Once in the foreground, updating the notification is enough.
             startForeground(NOTIFY_ID, mNotification);
         } else if (Prefs.persistNotifications() && (!mNotificationShowing)) {
             startForeground(NOTIFY_ID, mNotification);
@@ -216,9 +276,10 @@ public final class TorService extends Service implements TorServiceConstants, Or
         mPrefs = TorServiceUtils.getSharedPrefs(getApplicationContext());
         AndroidTorSettings androidTorSettings = new AndroidTorSettings(this, mPrefs);
         mEventBroadcaster = new AndroidEventBroadcaster(getApplicationContext(), androidTorSettings);
-        mEventHandler = new TorEventHandler(this, mEventBroadcaster);
-
         File configDir = getDir("torservice", Context.MODE_PRIVATE);
+        mBandwidthHistory = new BandwidthHistory(new File(configDir, "bandwidth.history"));
+        mEventHandler = new TorEventHandler(this, mEventBroadcaster, mBandwidthHistory);
+
         File nativeDir = new File(getApplicationInfo().nativeLibraryDir);
         TorConfig torConfig = createConfig(nativeDir, configDir);
         TorInstaller torInstaller = new CustomTorInstaller(getApplicationContext(), configDir, torConfig.getTorrcFile());
@@ -233,9 +294,12 @@ public final class TorService extends Service implements TorServiceConstants, Or
                 .CONNECTIVITY_ACTION));
         mActionBroadcastReceiver = new ActionBroadcastReceiver();
         registerReceiver(mActionBroadcastReceiver, new IntentFilter(CMD_NEWNYM));
+        mNotificationScheduler = new NotificationScheduler(this);
+        registerReceiver(mNotificationScheduler, NotificationScheduler.getIntentFilter());
 
         new Thread(new Runnable() {
             public void run() {
+                mBandwidthHistory.load();
                 if (setupTor()) {
                     notifyIfConnectedToTorNetwork();
                 }
@@ -250,6 +314,7 @@ public final class TorService extends Service implements TorServiceConstants, Or
         try {
             unregisterReceiver(mNetworkStateReceiver);
             unregisterReceiver(mActionBroadcastReceiver);
+            unregisterReceiver(mNotificationScheduler);
         } catch (IllegalArgumentException iae) {
 
         }
@@ -343,7 +408,17 @@ public final class TorService extends Service implements TorServiceConstants, Or
             mEventBroadcaster.broadcastNotice("An error occured stopping Tor: " + e.getMessage());
             mEventBroadcaster.broadcastLogMessage(getString(R.string.something_bad_happened));
         }
-        mEventHandler.getNodes().clear();
+        mEventHandler.getCircuits().clear();
+        mEventHandler.getStreams().clear();
+        mBandwidthHistory.flush();
+        if (Prefs.useDebugLogging()) {
+            ProxyMetrics.Snapshot metrics = getProxyMetrics();
+            mEventBroadcaster.broadcastDebug("proxy sessions=" + metrics.totalSessions
+                    + " active=" + metrics.activeSessions
+                    + " bytes=" + metrics.bytesToRemote + " up/" + metrics.bytesToClient + " down"
+                    + " connect p50=" + metrics.connectLatency.percentile(50) + "us"
+                    + " p99=" + metrics.connectLatency.percentile(99) + "us");
+        }
         clearNotifications();
         mEventBroadcaster.getStatus().off();
     }
@@ -44,6 +44,9 @@ import java.util.List;
 public class OrbotVpnManager implements Handler.Callback {
     private static final String TAG = "OrbotVpnService";
     private final static int VPN_MTU = 1500;
+    private final static int SOCKS_BYPASS_BACKLOG = 128;
+    private final static int SOCKS_BYPASS_MAX_SESSIONS = 128;
+    private final static int SOCKS_BYPASS_QUEUED_SESSIONS = 256;
     private final static boolean mIsLollipop = Build.VERSION.SDK_INT >= Build.VERSION_CODES
             .LOLLIPOP;
     //this is the actual DNS server we talk to over UDP or TCP (now using Tor's DNS port)
@@ -267,7 +270,9 @@ public class OrbotVpnManager implements Handler.Callback {
                 try {
                     mSocksProxyServer = new ProxyServer(new ServerAuthenticatorNone(null, null));
                     ProxyServer.setVpnService(mService);
-                    mSocksProxyServer.start(sSocksProxyServerPort, 5, InetAddress.getLocalHost());
+                    ProxyServer.setMaxSessions(SOCKS_BYPASS_MAX_SESSIONS, SOCKS_BYPASS_QUEUED_SESSIONS);
+                    mSocksProxyServer.start(sSocksProxyServerPort, SOCKS_BYPASS_BACKLOG,
+                            InetAddress.getLocalHost());
                 } catch (Exception e) {
                     Log.e(TAG, "error getting host", e);
                 }